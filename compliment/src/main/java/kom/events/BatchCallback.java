@@ -0,0 +1,30 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.events;
+
+import kom.util.callback.Callback;
+
+import java.util.List;
+
+/**
+ * Listener which handles bursts of events at once: {@link DefaultEventDispatcher#dispatchEvents}
+ * passes it every run of consecutive events of the same class as one unmodifiable list, single
+ * events are passed to {@link #handle}.
+ */
+public interface BatchCallback<T> extends Callback<T> {
+    public void handleBatch(List<T> events);
+}
@@ -19,25 +19,51 @@ package kom.events;
 import kom.util.callback.Callback;
 import kom.util.callback.CallbackExecutor;
 import kom.util.callback.RunnableCallbackExecutor;
-import kom.util.collections.ConcurrentMultiMap;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
+/**
+ * Dispatcher with precompiled dispatch tables: every concrete event class gets immutable array of
+ * listeners registered for the class itself, its super classes and interfaces (in that order).
+ * Dispatching is one map lookup and a loop over the array, nothing is allocated.
+ *
+ * Listener registrations are copy-on-write: add/remove builds new registry snapshot and rebuilds
+ * tables of already dispatched event classes, so it's cheap for rarely changed listener sets only.
+ */
 public class DefaultEventDispatcher<T> implements EventDispatcher<T> {
-    private static final Map<Class, List<Class>> eventsCache = new ConcurrentHashMap<Class, List<Class>>();
+    private static final Logger log = Logger.getLogger(DefaultEventDispatcher.class.getName());
+
+    private static final Callback<?>[] NO_LISTENERS = new Callback<?>[0];
 
-    private final ConcurrentMultiMap<Class, Callback<T>> listenersMap = new ConcurrentMultiMap<Class, Callback<T>>();
+    private final Object writeLock = new Object();
+    private volatile Registry registry = new Registry(Collections.<Class<?>, Callback<?>[]>emptyMap());
 
     private final Class<T> genericType;
+    private final EventHierarchy hierarchy;
+    private final boolean hooked; // subclass overrides dispatchEvent(Class, T)
     private CallbackExecutor executor;
+    private volatile Lane[] lanes = null;
 
     public DefaultEventDispatcher(Class<T> genericType) {
         this.genericType = genericType;
+        this.hierarchy = EventHierarchy.of(genericType);
+        this.hooked = overridesHook(getClass());
     }
 
     @Override
@@ -47,19 +73,63 @@ public class DefaultEventDispatcher<T> implements EventDispatcher<T> {
 
     @Override
     public <Y extends T> void addEventListener(Class<Y> eventType, Callback<? super Y> listener) {
-        //noinspection unchecked
-        listenersMap.add(eventType, (Callback<T>) listener);
+        if (listener == null) {
+            throw new NullPointerException("Listener can't be null");
+        }
+
+        synchronized (writeLock) {
+            final Map<Class<?>, Callback<?>[]> listeners = new HashMap<Class<?>, Callback<?>[]>(registry.listeners);
+            final Callback<?>[] current = listeners.get(eventType);
+
+            if (current == null) {
+                listeners.put(eventType, new Callback<?>[] {listener});
+            } else {
+                final Callback<?>[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = listener;
+                listeners.put(eventType, updated);
+            }
+
+            publish(listeners);
+        }
     }
 
     @Override
     public <Y extends T> void removeEventListener(Class<Y> eventType, Callback<? super Y> listener) {
-        //noinspection unchecked
-        listenersMap.remove(eventType, (Callback<T>)listener);
+        synchronized (writeLock) {
+            final Callback<?>[] current = registry.listeners.get(eventType);
+            if (current == null) {
+                return;
+            }
+
+            for (int i = 0; i < current.length; ++i) {
+                if (current[i].equals(listener)) {
+                    final Map<Class<?>, Callback<?>[]> listeners
+                            = new HashMap<Class<?>, Callback<?>[]>(registry.listeners);
+                    if (current.length == 1) {
+                        listeners.remove(eventType);
+                    } else {
+                        final Callback<?>[] updated = new Callback<?>[current.length - 1];
+                        System.arraycopy(current, 0, updated, 0, i);
+                        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                        listeners.put(eventType, updated);
+                    }
+
+                    publish(listeners);
+                    return;
+                }
+            }
+        }
     }
 
     @Override
     public void removeEventListeners(Class<? extends T> eventType) {
-        listenersMap.remove(eventType);
+        synchronized (writeLock) {
+            if (registry.listeners.containsKey(eventType)) {
+                final Map<Class<?>, Callback<?>[]> listeners = new HashMap<Class<?>, Callback<?>[]>(registry.listeners);
+                listeners.remove(eventType);
+                publish(listeners);
+            }
+        }
     }
 
     @Override
@@ -69,69 +139,474 @@ public class DefaultEventDispatcher<T> implements EventDispatcher<T> {
 
     @Override
     public void removeEventListeners() {
-        listenersMap.removeAll();
+        synchronized (writeLock) {
+            publish(Collections.<Class<?>, Callback<?>[]>emptyMap());
+        }
     }
 
-    @Override
-    public void dispatchEvent(T event) {
-        final Class rootEventType = event.getClass();
-        List<Class> eventTypesList = eventsCache.get(rootEventType);
-
-        if (eventTypesList == null) {
-            synchronized (eventsCache) {
-                if (eventsCache.containsKey(rootEventType)) {
-                    eventTypesList = eventsCache.get(rootEventType);
-                } else {
-                    eventTypesList = getEvents(rootEventType);
-                    eventsCache.put(rootEventType, eventTypesList);
+    /**
+     * Replaces registry, tables of event classes dispatched before are rebuilt eagerly,
+     * so dispatching doesn't pay for the change.
+     */
+    private void publish(Map<Class<?>, Callback<?>[]> listeners) {
+        final Registry previous = registry;
+        final Registry updated = new Registry(listeners);
+
+        for (Class<?> eventClass : previous.tables.keySet()) {
+            updated.tables.put(eventClass, compile(updated, eventClass));
+        }
+
+        registry = updated;
+    }
+
+    /**
+     * Enables partitioned dispatching: {@link PartitionedEvent}s are queued to one of {@code lanes}
+     * lanes by key hash and every lane is drained by one task of given executor at a time, so events
+     * of one key keep FIFO order while lanes run in parallel. Listeners of partitioned events are
+     * called on the lane directly (callback executor isn't involved). Other events are dispatched on
+     * the calling thread as before.
+     *
+     * Partitioning can be changed only while lanes are empty, otherwise events of one key queued to
+     * old and new lanes could be reordered; it must not race with dispatching of partitioned events.
+     *
+     * @throws IllegalStateException if current lanes have queued events
+     */
+    public void setPartitioning(int lanes, Executor laneExecutor) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("Lanes count must be positive: " + lanes);
+        }
+
+        if (laneExecutor == null) {
+            throw new NullPointerException("Lane executor can't be null");
+        }
+
+        @SuppressWarnings("unchecked")
+        final Lane[] result = (Lane[]) new DefaultEventDispatcher<?>.Lane[lanes];
+        for (int i = 0; i < lanes; ++i) {
+            result[i] = new Lane(laneExecutor);
+        }
+
+        synchronized (writeLock) {
+            final Lane[] current = this.lanes;
+            if (current != null) {
+                for (Lane lane : current) {
+                    if (lane.depth.get() != 0) {
+                        throw new IllegalStateException("Partitioning can't be changed while lanes have queued events");
+                    }
                 }
             }
+
+            this.lanes = result;
         }
+    }
 
-        for (Class eventType : eventTypesList) {
-            dispatchEvent(eventType, event);
+    /**
+     * @return count of queued events of every lane, empty array if dispatching isn't partitioned
+     */
+    public int[] getLaneDepths() {
+        final Lane[] current = lanes;
+        if (current == null) {
+            return new int[0];
         }
+
+        final int[] result = new int[current.length];
+        for (int i = 0; i < current.length; ++i) {
+            result[i] = current[i].depth.get();
+        }
+
+        return result;
     }
 
-    private List<Class> getEvents(Class fromEventType) {
-        final ArrayList<Class> result = new ArrayList<Class>();
-        final LinkedList<Class> events = new LinkedList<Class>();
-        events.addFirst(fromEventType);
+    @Override
+    public void dispatchEvent(T event) {
+        final Lane[] current = lanes;
+        if (current != null && event instanceof PartitionedEvent) {
+            laneOf(current, (PartitionedEvent) event).add(event);
+        } else {
+            dispatchNow(event);
+        }
+    }
 
-        while (!events.isEmpty()) {
-            final Class eventType = events.removeLast();
+    private static <L> L laneOf(L[] lanes, PartitionedEvent event) {
+        final Object key = event.getPartitionKey();
+        final int hash = key == null ? 0 : key.hashCode() ^ (key.hashCode() >>> 16);
 
-            if (eventType != null && (genericType.isAssignableFrom(eventType)) ) {
-                if (result.contains(eventType)) {
-                    continue;
-                }
+        return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+    }
 
-                result.add(eventType);
-                events.addFirst(eventType.getSuperclass());
+    private void dispatchNow(T event) {
+        if (hooked) {
+            dispatchHooked(event);
+            return;
+        }
 
-                for (Class item : eventType.getInterfaces()) {
-                    events.addFirst(item);
+        if (executor == null) {
+            executor = RunnableCallbackExecutor.getInstance();
+        }
+
+        for (Callback<?> listener : table(event.getClass())) {
+            executor.execute(erased(listener), event);
+        }
+    }
+
+    /**
+     * Dispatches burst of events: consecutive events of the same class form a run, listeners are
+     * resolved once per run and {@link BatchCallback}s receive the whole run (as unmodifiable list)
+     * at once, so every listener sees events in burst order. Partitioned events are still queued
+     * to their lanes one by one.
+     */
+    public void dispatchEvents(Collection<? extends T> events) {
+        dispatchSnapshot(events.toArray());
+    }
+
+    void dispatchSnapshot(Object[] events) {
+        final Lane[] current = lanes;
+
+        Class<?> runClass = null;
+        int start = 0;
+        for (int i = 0; i < events.length; ++i) {
+            final Object event = events[i];
+
+            if (current != null && event instanceof PartitionedEvent) {
+                dispatchRun(runClass, events, start, i);
+
+                @SuppressWarnings("unchecked")
+                final T partitioned = (T) event;
+                laneOf(current, (PartitionedEvent) event).add(partitioned);
+
+                runClass = null;
+                start = i + 1;
+            } else if (event.getClass() != runClass) {
+                dispatchRun(runClass, events, start, i);
+
+                runClass = event.getClass();
+                start = i;
+            }
+        }
+
+        dispatchRun(runClass, events, start, events.length);
+    }
+
+    private void dispatchRun(Class<?> eventClass, Object[] events, int from, int to) {
+        if (from == to) {
+            return;
+        }
+
+        if (hooked) {
+            for (int i = from; i < to; ++i) {
+                @SuppressWarnings("unchecked")
+                final T event = (T) events[i];
+                dispatchHooked(event);
+            }
+            return;
+        }
+
+        if (executor == null) {
+            executor = RunnableCallbackExecutor.getInstance();
+        }
+
+        final Registry current = registry;
+        List<Object> run = null;
+        for (Callback<?> listener : table(current, eventClass)) {
+            if (listener instanceof BatchCallback) {
+                if (run == null) {
+                    run = Collections.unmodifiableList(Arrays.asList(events).subList(from, to));
                 }
+
+                executor.execute(current.adapter((BatchCallback<?>) listener), run);
+            } else {
+                for (int i = from; i < to; ++i) {
+                    executor.execute(erased(listener), events[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Listeners are registered for a supertype of event class, so they accept its instances.
+     */
+    @SuppressWarnings("unchecked")
+    private static Callback<Object> erased(Callback<?> listener) {
+        return (Callback<Object>) listener;
+    }
+
+    private Callback<?>[] table(Class<?> eventClass) {
+        return table(registry, eventClass);
+    }
+
+    private Callback<?>[] table(Registry current, Class<?> eventClass) {
+        Callback<?>[] table = current.tables.get(eventClass);
+
+        if (table == null) {
+            table = compile(current, eventClass);
+            current.tables.putIfAbsent(eventClass, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * Flattens listeners of event class and its super types into single array.
+     */
+    private Callback<?>[] compile(Registry registry, Class<?> eventClass) {
+        if (registry.listeners.isEmpty()) {
+            return NO_LISTENERS;
+        }
+
+        int size = 0;
+        final List<Class<?>> eventTypes = hierarchy.getTypes(eventClass);
+        for (Class<?> eventType : eventTypes) {
+            final Callback<?>[] listeners = registry.listeners.get(eventType);
+            if (listeners != null) {
+                size += listeners.length;
+            }
+        }
+
+        if (size == 0) {
+            return NO_LISTENERS;
+        }
+
+        final Callback<?>[] result = new Callback<?>[size];
+        int position = 0;
+        for (Class<?> eventType : eventTypes) {
+            final Callback<?>[] listeners = registry.listeners.get(eventType);
+            if (listeners != null) {
+                System.arraycopy(listeners, 0, result, position, listeners.length);
+                position += listeners.length;
             }
         }
 
         return result;
     }
 
-    protected void dispatchEvent(Class eventType, final T event) {
+    /**
+     * Routes event through {@link #dispatchEvent(Class, Object)} once per type of its hierarchy.
+     */
+    private void dispatchHooked(T event) {
+        for (Class<?> eventType : hierarchy.getTypes(event.getClass())) {
+            dispatchEvent(eventType, event);
+        }
+    }
+
+    /**
+     * Dispatches event to listeners registered for exactly given type. If subclass overrides this
+     * method, every dispatched event (partitioned ones included) is routed through it once per type
+     * of event hierarchy, most specific type first; precompiled tables aren't used then and
+     * {@link BatchCallback}s get runs of {@link #dispatchEvents} as single events.
+     */
+    protected void dispatchEvent(Class<?> eventType, final T event) {
         if (executor == null) {
             executor = RunnableCallbackExecutor.getInstance();
         }
 
-        listenersMap.foreach(eventType, new Callback<Callback<T>>() {
-            @Override
-            public void handle(Callback<T> listener) {
-                executor.execute(listener, event);
-            }
-        });
+        final Callback<?>[] listeners = registry.listeners.get(eventType);
+        if (listeners == null) {
+            return;
+        }
+
+        for (Callback<?> listener : listeners) {
+            executor.execute(erased(listener), event);
+        }
     }
 
     public void setCallbackExecutor(CallbackExecutor executor) {
         this.executor = executor;
     }
-}
\ No newline at end of file
+
+    private static boolean overridesHook(Class<?> type) {
+        for (Class<?> current = type; current != DefaultEventDispatcher.class; current = current.getSuperclass()) {
+            try {
+                current.getDeclaredMethod("dispatchEvent", Class.class, Object.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not overridden at this level
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Serial queue of partitioned events, depth counter doubles as work-in-progress counter.
+     * Lane gives executor thread back after a run of {@link #MAX_RUN} events.
+     */
+    private final class Lane implements Runnable {
+        private static final int MAX_RUN = 256;
+
+        private final Executor laneExecutor;
+        private final Queue<T> queue = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger depth = new AtomicInteger(0);
+
+        Lane(Executor laneExecutor) {
+            this.laneExecutor = laneExecutor;
+        }
+
+        /**
+         * @throws java.util.concurrent.RejectedExecutionException if lane can't be scheduled, event
+         *                                                         isn't queued then
+         */
+        void add(T event) {
+            queue.add(event);
+            if (depth.getAndIncrement() == 0) {
+                try {
+                    laneExecutor.execute(this);
+                } catch (RuntimeException e) {
+                    unlink(event);
+                    if (depth.decrementAndGet() != 0) {
+                        run(); // events queued meanwhile have no other runner
+                    }
+
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Removes the node queued by rejected {@link #add}: nothing is polled while lane has no
+         * runner and other events are only appended, so it's the last queued occurrence of the
+         * instance (equal or even the same event may be queued before it).
+         */
+        private void unlink(T event) {
+            int occurrences = 0;
+            for (T queued : queue) {
+                if (queued == event) {
+                    ++occurrences;
+                }
+            }
+
+            for (Iterator<T> iterator = queue.iterator(); iterator.hasNext(); ) {
+                if (iterator.next() == event && --occurrences == 0) {
+                    iterator.remove();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int processed = 1; ; ++processed) {
+                boolean handled = false;
+                try {
+                    handle(queue.poll());
+                    handled = true;
+                } finally {
+                    if (!handled) {
+                        abandon(); // error escapes the lane, queued events need another runner
+                    }
+                }
+
+                if (depth.decrementAndGet() == 0) {
+                    return;
+                }
+
+                if (processed == MAX_RUN) {
+                    try {
+                        laneExecutor.execute(this);
+                        return;
+                    } catch (RuntimeException e) { // executor is saturated, lane goes on here
+                        processed = 0;
+                    }
+                }
+            }
+        }
+
+        private void abandon() {
+            if (depth.decrementAndGet() == 0) {
+                return;
+            }
+
+            try {
+                laneExecutor.execute(this);
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Lane can't be rescheduled, " + depth.get() + " events are stuck", e);
+            }
+        }
+
+        /**
+         * Listeners are called on the lane, runnable listeners are run here as well, so handling
+         * never leaves the lane (and events of one key stay ordered).
+         */
+        private void handle(T event) {
+            if (hooked) {
+                try {
+                    dispatchHooked(event);
+                } catch (RuntimeException e) { // lane must not stall on listener failure
+                    log.log(Level.WARNING, e.getMessage(), e);
+                }
+                return;
+            }
+
+            for (Callback<?> listener : table(event.getClass())) {
+                try {
+                    erased(listener).handle(event);
+
+                    if (listener instanceof Runnable) {
+                        ((Runnable) listener).run();
+                    }
+                } catch (RuntimeException e) { // lane must not stall on listener failure
+                    log.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of registrations with dispatch tables compiled from it.
+     */
+    private static final class Registry {
+        final Map<Class<?>, Callback<?>[]> listeners;
+        final ConcurrentMap<Class<?>, Callback<?>[]> tables = new ConcurrentHashMap<Class<?>, Callback<?>[]>();
+        final Map<Callback<?>, BatchAdapter> adapters = new IdentityHashMap<Callback<?>, BatchAdapter>();
+
+        Registry(Map<Class<?>, Callback<?>[]> listeners) {
+            this.listeners = listeners;
+
+            for (Callback<?>[] registered : listeners.values()) {
+                for (Callback<?> listener : registered) {
+                    if (listener instanceof BatchCallback && !adapters.containsKey(listener)) {
+                        @SuppressWarnings("unchecked")
+                        final BatchCallback<Object> batch = (BatchCallback<Object>) listener;
+                        adapters.put(listener, listener instanceof Runnable
+                                ? new RunnableBatchAdapter(batch)
+                                : new BatchAdapter(batch));
+                    }
+                }
+            }
+        }
+
+        BatchAdapter adapter(BatchCallback<?> listener) {
+            return adapters.get(listener);
+        }
+    }
+
+    /**
+     * Passes run to {@link BatchCallback#handleBatch} through the callback executor, created once
+     * per registration.
+     */
+    private static class BatchAdapter implements Callback<List<Object>> {
+        final BatchCallback<Object> listener;
+
+        BatchAdapter(BatchCallback<Object> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void handle(List<Object> events) {
+            listener.handleBatch(events);
+        }
+    }
+
+    /**
+     * Keeps runnable part of listener visible to the callback executor (e.g. its executor hop).
+     */
+    private static final class RunnableBatchAdapter extends BatchAdapter implements Runnable {
+        RunnableBatchAdapter(BatchCallback<Object> listener) {
+            super(listener);
+        }
+
+        @Override
+        public void run() {
+            ((Runnable) listener).run();
+        }
+    }
+}
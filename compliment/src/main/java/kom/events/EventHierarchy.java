@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.events;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolves event class into list of its types (class itself, super classes and interfaces in
+ * breadth-first order) assignable to the root event type of dispatcher.
+ *
+ * Results are cached per root type with {@link ClassValue}: lookups take no lock, and cached lists
+ * are attached to the classes themselves, so they don't pin classloaders of unloaded event classes.
+ */
+final class EventHierarchy {
+    private static final ClassValue<EventHierarchy> byRoot = new ClassValue<EventHierarchy>() {
+        @Override
+        protected EventHierarchy computeValue(Class<?> rootType) {
+            return new EventHierarchy(rootType);
+        }
+    };
+
+    private final Class<?> rootType;
+
+    private final ClassValue<List<Class<?>>> types = new ClassValue<List<Class<?>>>() {
+        @Override
+        protected List<Class<?>> computeValue(Class<?> eventClass) {
+            return resolve(eventClass);
+        }
+    };
+
+    private EventHierarchy(Class<?> rootType) {
+        this.rootType = rootType;
+    }
+
+    static EventHierarchy of(Class<?> rootType) {
+        return byRoot.get(rootType);
+    }
+
+    List<Class<?>> getTypes(Class<?> eventClass) {
+        return types.get(eventClass);
+    }
+
+    private List<Class<?>> resolve(Class<?> eventClass) {
+        final List<Class<?>> result = new ArrayList<Class<?>>();
+        final Set<Class<?>> visited = new HashSet<Class<?>>();
+        final ArrayDeque<Class<?>> queue = new ArrayDeque<Class<?>>();
+        queue.addLast(eventClass);
+
+        while (!queue.isEmpty()) {
+            final Class<?> eventType = queue.pollFirst();
+
+            if (!rootType.isAssignableFrom(eventType) || !visited.add(eventType)) {
+                continue;
+            }
+
+            result.add(eventType);
+
+            if (eventType.getSuperclass() != null) {
+                queue.addLast(eventType.getSuperclass());
+            }
+
+            for (Class<?> item : eventType.getInterfaces()) {
+                queue.addLast(item);
+            }
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.events;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous dispatcher: {@link #dispatchEvent} publishes event into preallocated ring buffer
+ * and returns, consumer threads drain runs of published events to listeners.
+ *
+ * Every slot has its own sequence (published / free for next lap), so producers only claim a
+ * sequence (plain increment for {@link ProducerType#SINGLE}, atomic one for {@link ProducerType#MULTI})
+ * and consumers claim whole runs of published slots by one CAS and dispatch them as batches
+ * (see {@link #dispatchEvents}). Nothing is allocated per event: a run of several events is
+ * copied into its own array (batch listeners get a view of it), single event is dispatched right
+ * from its slot.
+ * Producer waits (using wait strategy) while buffer is full. With several consumers events are
+ * processed in parallel, so there's no ordering guarantee between runs.
+ *
+ * Producers are counted while they publish: after {@link #shutdown()} consumers keep draining
+ * until no producer is in flight, so event accepted by {@code dispatchEvent} is never lost.
+ *
+ * Class is final: consumer threads are started by constructor, so subclass fields wouldn't be
+ * initialized yet when consumers start dispatching.
+ */
+public final class RingBufferEventDispatcher<T> extends DefaultEventDispatcher<T> {
+    private static final Logger log = Logger.getLogger(RingBufferEventDispatcher.class.getName());
+
+    public enum ProducerType {
+        /** dispatchEvent is called by one thread at a time */
+        SINGLE,
+        MULTI
+    }
+
+    public enum WaitStrategy {
+        /** lowest latency, burns CPU while idle: use only when every producer and consumer has own core */
+        BUSY_SPIN {
+            @Override
+            void idle() {
+            }
+        },
+        YIELD {
+            @Override
+            void idle() {
+                Thread.yield();
+            }
+        },
+        /** idle thread sleeps for {@link #PARK_NANOS} between checks */
+        PARK {
+            @Override
+            void idle() {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        };
+
+        public static final long PARK_NANOS = 50000;
+
+        abstract void idle();
+    }
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final int maxBatch;
+    private final ProducerType producerType;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong producerCursor = new AtomicLong(0);
+    private final AtomicLong consumerCursor = new AtomicLong(0);
+    private final AtomicInteger activeProducers = new AtomicInteger(0);
+    private final AtomicInteger liveConsumers;
+    private final Thread[] consumers;
+    private volatile boolean running = true;
+
+    public RingBufferEventDispatcher(Class<T> genericType) {
+        this(genericType, 1024, 1, ProducerType.MULTI, WaitStrategy.PARK);
+    }
+
+    /**
+     * @param capacity ring size, rounded up to power of two (at least two: with single slot the
+     *                 published and the free-for-next-lap sequences would be equal)
+     * @param consumerCount number of consumer threads
+     */
+    public RingBufferEventDispatcher(Class<T> genericType, int capacity, int consumerCount,
+                                     ProducerType producerType, WaitStrategy waitStrategy) {
+        super(genericType);
+
+        if (capacity < 1 || capacity > 1 << 30 || consumerCount < 1) {
+            throw new IllegalArgumentException("Capacity must be in [1, 2^30] and consumer count positive");
+        }
+
+        if (producerType == null || waitStrategy == null) {
+            throw new NullPointerException("Producer type and wait strategy can't be null");
+        }
+
+        final int size = Math.max(2, Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1);
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.maxBatch = Math.max(1, size / consumerCount);
+        this.producerType = producerType;
+        this.waitStrategy = waitStrategy;
+
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i); // slot is free for sequence i
+        }
+
+        this.liveConsumers = new AtomicInteger(consumerCount);
+        this.consumers = new Thread[consumerCount];
+        for (int i = 0; i < consumerCount; ++i) {
+            consumers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume();
+                }
+            }, "ring-event-dispatcher-" + i);
+            consumers[i].setDaemon(true);
+            consumers[i].start();
+        }
+    }
+
+    /**
+     * Publishes event, waits only while ring is full.
+     *
+     * @throws IllegalStateException if dispatcher has been shut down, or all consumers have died
+     *                               while ring is full
+     */
+    @Override
+    public void dispatchEvent(T event) {
+        if (event == null) {
+            throw new NullPointerException("Event can't be null");
+        }
+
+        // counted before running is checked: consumer which sees shutdown also sees this producer
+        activeProducers.incrementAndGet();
+        try {
+            if (!running) {
+                throw new IllegalStateException("Dispatcher has been shut down");
+            }
+
+            publish(event);
+        } finally {
+            activeProducers.decrementAndGet();
+        }
+    }
+
+    private void publish(T event) {
+        final long sequence;
+        if (producerType == ProducerType.SINGLE) {
+            sequence = producerCursor.get();
+            producerCursor.lazySet(sequence + 1);
+        } else {
+            sequence = producerCursor.getAndIncrement();
+        }
+
+        final int index = (int) sequence & mask;
+        while (sequences.get(index) != sequence) {
+            if (liveConsumers.get() == 0) { // nobody would ever free the slot
+                throw new IllegalStateException("Dispatcher has been terminated");
+            }
+
+            waitStrategy.idle();
+        }
+
+        slots[index] = event;
+        sequences.lazySet(index, sequence + 1); // publishes the slot
+    }
+
+    /**
+     * Publishes events one by one, consumers dispatch drained runs as batches.
+     */
+    @Override
+    public void dispatchEvents(Collection<? extends T> events) {
+        for (T event : events) {
+            dispatchEvent(event);
+        }
+    }
+
+    /**
+     * Stops accepting events, consumers finish after events of producers which have passed the
+     * check (including ones waiting for free slot) are dispatched.
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    public boolean awaitTermination(long millis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + millis;
+        for (Thread consumer : consumers) {
+            consumer.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (consumer.isAlive()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return count of claimed but not yet consumed events (approximate)
+     */
+    public long getBacklog() {
+        return Math.max(0, producerCursor.get() - consumerCursor.get());
+    }
+
+    private void consume() {
+        try {
+            while (!isDrained()) {
+                consumeRun();
+            }
+        } finally {
+            liveConsumers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read order matters: producer in flight is seen once shutdown is seen, and sequences claimed
+     * by producers which have finished are seen once they aren't in flight anymore.
+     */
+    private boolean isDrained() {
+        return !running && activeProducers.get() == 0 && consumerCursor.get() >= producerCursor.get();
+    }
+
+    private void consumeRun() {
+        final long start = consumerCursor.get();
+
+        int count = 0;
+        while (count < maxBatch && sequences.get((int) (start + count) & mask) == start + count + 1) {
+            ++count;
+        }
+
+        if (count == 0) {
+            waitStrategy.idle();
+            return;
+        }
+
+        if (!consumerCursor.compareAndSet(start, start + count)) {
+            return; // run has been claimed by other consumer
+        }
+
+        try {
+            if (count == 1) {
+                @SuppressWarnings("unchecked")
+                final T event = (T) take(start);
+                super.dispatchEvent(event);
+            } else {
+                final Object[] run = new Object[count];
+                for (int i = 0; i < count; ++i) {
+                    run[i] = take(start + i);
+                }
+
+                dispatchSnapshot(run);
+            }
+        } catch (RuntimeException e) { // consumer thread must survive listener failure
+            log.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Takes event of claimed sequence and frees its slot for next lap.
+     */
+    private Object take(long sequence) {
+        final int index = (int) sequence & mask;
+        final Object event = slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, sequence + slots.length);
+
+        return event;
+    }
+}
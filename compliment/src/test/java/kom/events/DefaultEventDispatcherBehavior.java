@@ -0,0 +1,343 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.events;
+
+import kom.util.callback.Callback;
+import kom.util.callback.CallbackExecutor;
+import kom.util.callback.ExceptionHandler;
+import kom.util.callback.RunnableCallbackExecutor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class DefaultEventDispatcherBehavior {
+    private DefaultEventDispatcher<Object> dispatcher;
+
+    @Before
+    public void before() {
+        dispatcher = new DefaultEventDispatcher<Object>(Object.class);
+    }
+
+    @Test(timeout = 20000)
+    public void eventsOfOneKeyShouldKeepOrder() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<List<Integer>> received = new ArrayList<List<Integer>>();
+        for (int key = 0; key < 8; key++) {
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        dispatcher.setPartitioning(4, pool);
+        dispatcher.addEventListener(Keyed.class, new Callback<Keyed>() {
+            @Override
+            public void handle(Keyed message) {
+                received.get(message.key).add(message.value);
+            }
+        });
+
+        for (int value = 0; value < 1000; value++) {
+            dispatcher.dispatchEvent(new Keyed(value % 8, value));
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+
+        for (int key = 0; key < 8; key++) {
+            final List<Integer> values = received.get(key);
+            assertThat(values.size(), is(125));
+            for (int i = 0; i < values.size(); i++) {
+                assertThat(values.get(i), is(key + i * 8));
+            }
+        }
+    }
+
+    @Test
+    public void laneShouldNotGoThroughCallbackExecutor() throws Exception {
+        final List<Object> hopped = new ArrayList<Object>();
+        final List<Object> handled = new ArrayList<Object>();
+
+        dispatcher.setCallbackExecutor(new CallbackExecutor() {
+            @Override
+            public <T> void execute(Callback<T> callback, T data) {
+                hopped.add(data);
+            }
+
+            @Override
+            public void setRunnableExecutor(Executor threadExecutor) {
+            }
+
+            @Override
+            public void setExceptionHandler(ExceptionHandler exceptionHandler) {
+            }
+        });
+        dispatcher.setPartitioning(2, new InlineExecutor());
+        dispatcher.addEventListener(new Callback<Object>() {
+            @Override
+            public void handle(Object message) {
+                handled.add(message);
+            }
+        });
+
+        final Keyed event = new Keyed(1, 1);
+        dispatcher.dispatchEvent(event);
+
+        assertThat(handled.size(), is(1));
+        assertThat(hopped.size(), is(0));
+    }
+
+    @Test
+    public void rejectedLaneShouldNotStall() throws Exception {
+        final InlineExecutor executor = new InlineExecutor();
+        final List<Object> handled = new ArrayList<Object>();
+
+        dispatcher.setPartitioning(1, executor);
+        dispatcher.addEventListener(new Callback<Object>() {
+            @Override
+            public void handle(Object message) {
+                handled.add(message);
+            }
+        });
+
+        executor.reject = true;
+        try {
+            dispatcher.dispatchEvent(new Keyed(1, 1));
+            fail("Rejection should be thrown");
+        } catch (RejectedExecutionException ignored) {
+        }
+
+        assertThat(dispatcher.getLaneDepths()[0], is(0));
+
+        executor.reject = false;
+        dispatcher.dispatchEvent(new Keyed(1, 2));
+
+        assertThat(handled.size(), is(1));
+        assertThat(((Keyed) handled.get(0)).value, is(2));
+    }
+
+    @Test
+    public void laneShouldNotStallOnListenerError() throws Exception {
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+        final List<Object> handled = new ArrayList<Object>();
+
+        dispatcher.setPartitioning(1, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        dispatcher.addEventListener(Keyed.class, new Callback<Keyed>() {
+            @Override
+            public void handle(Keyed message) {
+                if (message.value == 1) {
+                    throw new Error("listener failure");
+                }
+                handled.add(message.value);
+            }
+        });
+
+        dispatcher.dispatchEvent(new Keyed(1, 1));
+        dispatcher.dispatchEvent(new Keyed(1, 2));
+
+        try {
+            scheduled.get(0).run();
+            fail("Error should not be swallowed");
+        } catch (Error ignored) {
+        }
+
+        assertThat(scheduled.size(), is(2));
+        scheduled.get(1).run();
+
+        assertEquals(Arrays.<Object>asList(2), handled);
+        assertThat(dispatcher.getLaneDepths()[0], is(0));
+    }
+
+    @Test
+    public void partitioningShouldNotChangeWhileLanesAreBusy() throws Exception {
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+
+        dispatcher.setPartitioning(2, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        dispatcher.dispatchEvent(new Keyed(1, 1));
+
+        try {
+            dispatcher.setPartitioning(4, new InlineExecutor());
+            fail("Partitioning of busy lanes should not be changed");
+        } catch (IllegalStateException ignored) {
+        }
+
+        scheduled.get(0).run();
+        dispatcher.setPartitioning(4, new InlineExecutor());
+
+        assertThat(dispatcher.getLaneDepths().length, is(4));
+    }
+
+    @Test
+    public void batchShouldKeepOrderOfDifferentClasses() throws Exception {
+        final List<Object> received = new ArrayList<Object>();
+        final List<List<Object>> batches = new ArrayList<List<Object>>();
+
+        dispatcher.addEventListener(new Callback<Object>() {
+            @Override
+            public void handle(Object message) {
+                received.add(message);
+            }
+        });
+        dispatcher.addEventListener(Number.class, new NumberBatches(batches));
+
+        dispatcher.dispatchEvents(Arrays.<Object>asList(1, "a", 2, 3L, 4L));
+
+        assertEquals(Arrays.<Object>asList(1, "a", 2, 3L, 4L), received);
+        assertEquals(Arrays.<Object>asList(Arrays.<Object>asList(1), Arrays.<Object>asList(2),
+                Arrays.<Object>asList(3L, 4L)), batches);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void batchShouldBeUnmodifiable() throws Exception {
+        final List<List<Object>> batches = new ArrayList<List<Object>>();
+        dispatcher.addEventListener(Number.class, new NumberBatches(batches));
+
+        dispatcher.dispatchEvents(Arrays.<Object>asList(1, 2));
+
+        batches.get(0).clear();
+    }
+
+    @Test
+    public void runnableBatchListenerShouldBeRunByExecutor() throws Exception {
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+        final List<List<Object>> batches = new ArrayList<List<Object>>();
+        final int[] runs = new int[1];
+
+        dispatcher.setCallbackExecutor(new RunnableCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        }));
+        dispatcher.addEventListener(Number.class, new RunnableNumberBatches(batches, runs));
+
+        dispatcher.dispatchEvents(Arrays.<Object>asList(1, 2));
+
+        assertThat(batches.size(), is(1));
+        assertThat(scheduled.size(), is(1));
+        assertThat(runs[0], is(0));
+
+        scheduled.get(0).run();
+        assertThat(runs[0], is(1));
+    }
+
+    @Test
+    public void overriddenHookShouldSeeEveryDispatch() throws Exception {
+        final List<Object> hooked = new ArrayList<Object>();
+        final List<Object> received = new ArrayList<Object>();
+        final DefaultEventDispatcher<Object> dispatcher = new DefaultEventDispatcher<Object>(Object.class) {
+            @Override
+            protected void dispatchEvent(Class<?> eventType, Object event) {
+                if (eventType == Integer.class) {
+                    hooked.add(event);
+                }
+                super.dispatchEvent(eventType, event);
+            }
+        };
+        dispatcher.addEventListener(Number.class, new Callback<Number>() {
+            @Override
+            public void handle(Number message) {
+                received.add(message);
+            }
+        });
+
+        dispatcher.dispatchEvent(1);
+        dispatcher.dispatchEvents(Arrays.<Object>asList(2, 3, "a"));
+
+        assertEquals(Arrays.<Object>asList(1, 2, 3), hooked);
+        assertEquals(Arrays.<Object>asList(1, 2, 3), received);
+    }
+
+    private static class NumberBatches implements BatchCallback<Number> {
+        private final List<List<Object>> batches;
+
+        NumberBatches(List<List<Object>> batches) {
+            this.batches = batches;
+        }
+
+        @Override
+        public void handleBatch(List<Number> events) {
+            batches.add((List) events);
+        }
+
+        @Override
+        public void handle(Number message) {
+            batches.add(Arrays.<Object>asList(message));
+        }
+    }
+
+    private static final class RunnableNumberBatches extends NumberBatches implements Runnable {
+        private final int[] runs;
+
+        RunnableNumberBatches(List<List<Object>> batches, int[] runs) {
+            super(batches);
+            this.runs = runs;
+        }
+
+        @Override
+        public void run() {
+            ++runs[0];
+        }
+    }
+
+    private static final class Keyed implements PartitionedEvent {
+        final int key;
+        final int value;
+
+        Keyed(int key, int value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public Object getPartitionKey() {
+            return key;
+        }
+    }
+
+    private static final class InlineExecutor implements Executor {
+        volatile boolean reject = false;
+
+        @Override
+        public void execute(Runnable command) {
+            if (reject) {
+                throw new RejectedExecutionException();
+            }
+
+            command.run();
+        }
+    }
+}
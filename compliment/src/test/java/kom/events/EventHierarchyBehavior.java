@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.events;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class EventHierarchyBehavior {
+    private interface Marked {}
+
+    private interface Tagged extends Marked {}
+
+    private static class BaseEvent implements Marked {}
+
+    private static class ChildEvent extends BaseEvent implements Tagged, Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    @Test
+    public void typesShouldStartFromEventClassFollowedByAncestors() throws Exception {
+        final List<Class<?>> types = EventHierarchy.of(Object.class).getTypes(ChildEvent.class);
+
+        assertThat(types.get(0), is((Object) ChildEvent.class));
+        assertThat(types.get(1), is((Object) BaseEvent.class));
+        assertThat(new HashSet<Class<?>>(types), is(new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+                ChildEvent.class, BaseEvent.class, Tagged.class, Runnable.class, Marked.class, Object.class))));
+    }
+
+    @Test
+    public void sharedInterfacesShouldBeListedOnce() throws Exception {
+        final List<Class<?>> types = EventHierarchy.of(Object.class).getTypes(ChildEvent.class);
+
+        assertThat(types.size(), is(new HashSet<Class<?>>(types).size()));
+    }
+
+    @Test
+    public void typesNotAssignableToRootShouldBeSkipped() throws Exception {
+        final List<Class<?>> types = EventHierarchy.of(Marked.class).getTypes(ChildEvent.class);
+
+        assertThat(types, is(Arrays.<Class<?>>asList(ChildEvent.class, BaseEvent.class, Tagged.class, Marked.class)));
+    }
+
+    @Test
+    public void hierarchyShouldBeCachedPerRoot() throws Exception {
+        final EventHierarchy hierarchy = EventHierarchy.of(Marked.class);
+
+        assertSame(hierarchy, EventHierarchy.of(Marked.class));
+        assertTrue(hierarchy != EventHierarchy.of(Object.class));
+        assertSame(hierarchy.getTypes(ChildEvent.class), hierarchy.getTypes(ChildEvent.class));
+    }
+}
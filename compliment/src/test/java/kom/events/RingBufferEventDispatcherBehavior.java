@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.events;
+
+import kom.util.callback.Callback;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class RingBufferEventDispatcherBehavior {
+    @Test(timeout = 20000)
+    public void acceptedEventsShouldBeDispatchedAfterShutdown() throws Exception {
+        final RingBufferEventDispatcher<Long> dispatcher = new RingBufferEventDispatcher<Long>(Long.class, 8, 2,
+                RingBufferEventDispatcher.ProducerType.MULTI, RingBufferEventDispatcher.WaitStrategy.PARK);
+        final AtomicLong dispatched = new AtomicLong();
+        final AtomicLong accepted = new AtomicLong();
+
+        dispatcher.addEventListener(new Callback<Long>() {
+            @Override
+            public void handle(Long message) {
+                dispatched.incrementAndGet();
+            }
+        });
+
+        final Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (long event = 0; ; event++) {
+                            dispatcher.dispatchEvent(event);
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException ignored) {
+                        // shut down
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        Thread.sleep(100);
+        dispatcher.shutdown();
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertThat(dispatcher.awaitTermination(5000), is(true));
+        assertThat(dispatched.get(), is(accepted.get()));
+    }
+
+    @Test(timeout = 5000, expected = IllegalStateException.class)
+    public void producerWaitingForFreeSlotShouldFailWhenConsumersHaveDied() throws Exception {
+        final RingBufferEventDispatcher<Long> dispatcher = new RingBufferEventDispatcher<Long>(Long.class, 2, 1,
+                RingBufferEventDispatcher.ProducerType.SINGLE, RingBufferEventDispatcher.WaitStrategy.PARK);
+
+        dispatcher.addEventListener(new Callback<Long>() {
+            @Override
+            public void handle(Long message) {
+                throw new Error("consumer dies");
+            }
+        });
+
+        for (long event = 0; event < 10; event++) {
+            dispatcher.dispatchEvent(event);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void singleSlotRingShouldNotOverwriteEvents() throws Exception {
+        final RingBufferEventDispatcher<Long> dispatcher = new RingBufferEventDispatcher<Long>(Long.class, 1, 1,
+                RingBufferEventDispatcher.ProducerType.SINGLE, RingBufferEventDispatcher.WaitStrategy.PARK);
+        final AtomicLong sum = new AtomicLong();
+
+        dispatcher.addEventListener(new Callback<Long>() {
+            @Override
+            public void handle(Long message) {
+                sum.addAndGet(message);
+            }
+        });
+
+        for (long event = 1; event <= 1000; event++) {
+            dispatcher.dispatchEvent(event);
+        }
+
+        dispatcher.shutdown();
+
+        assertThat(dispatcher.awaitTermination(5000), is(true));
+        assertThat(sum.get(), is(500500L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectEventsAfterShutdown() throws Exception {
+        final RingBufferEventDispatcher<Long> dispatcher = new RingBufferEventDispatcher<Long>(Long.class);
+        dispatcher.shutdown();
+
+        dispatcher.dispatchEvent(1L);
+    }
+
+    @Test(timeout = 20000)
+    public void singleConsumerShouldKeepOrderOfMixedClasses() throws Exception {
+        final RingBufferEventDispatcher<Object> dispatcher = new RingBufferEventDispatcher<Object>(Object.class, 64, 1,
+                RingBufferEventDispatcher.ProducerType.SINGLE, RingBufferEventDispatcher.WaitStrategy.PARK);
+        final List<Object> received = new ArrayList<Object>();
+        final List<Object> sent = new ArrayList<Object>();
+
+        dispatcher.addEventListener(new Callback<Object>() {
+            @Override
+            public void handle(Object message) {
+                received.add(message);
+            }
+        });
+
+        for (int i = 0; i < 10000; i++) {
+            final Object event = i % 3 == 0 ? (Object) ("s" + i) : (Object) i;
+            sent.add(event);
+            dispatcher.dispatchEvent(event);
+        }
+
+        dispatcher.shutdown();
+
+        assertThat(dispatcher.awaitTermination(10000), is(true));
+        assertEquals(sent, received);
+    }
+}
@@ -21,4 +21,9 @@ public interface Deferred<T> extends Promise<T> {
     public boolean reject(Object data);
     public boolean update(Object data);
     public Promise<T> getPromise();
+
+    /**
+     * Enables conflation of {@link #update(Object)} notifications, can be set only once.
+     */
+    public Deferred<T> withUpdatePolicy(UpdatePolicy policy);
 }
\ No newline at end of file
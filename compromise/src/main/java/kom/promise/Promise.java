@@ -19,7 +19,13 @@ package kom.promise;
 import kom.promise.events.*;
 import kom.util.callback.Callback;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @SuppressWarnings("UnusedDeclaration")
 public interface Promise<T> extends Future<T> {
@@ -32,9 +38,51 @@ public interface Promise<T> extends Future<T> {
     public Promise<T> onCancel(Callback<CancelEvent> callback);
     public Promise<T> onAny(Callback<PromiseEvent> callback);
 
+    /**
+     * Callbacks registered with executor are executed by that executor instead of context callback
+     * executor: {@code AsyncUtils.inlineExecutor()} runs them on completing thread,
+     * {@code context.getRunnableExecutor()} runs them asynchronously. Callbacks registered without
+     * executor are handed to context callback executor on completing thread; both inline modes are
+     * reentrancy safe (callbacks triggered by a callback are queued and run after it).
+     */
+    public Promise<T> onSuccess(Callback<SuccessEvent<T>> callback, Executor executor);
+    public Promise<T> onFail(Callback<FailEvent> callback, Executor executor);
+    public Promise<T> onUpdate(Callback<? super UpdateEvent<?>> callback, Executor executor);
+    public Promise<T> onCancel(Callback<CancelEvent> callback, Executor executor);
+    public Promise<T> onAny(Callback<? super PromiseEvent<?>> callback, Executor executor);
+
+    public <R> Promise<R> map(Function<? super T, ? extends R> function);
+    public <R> Promise<R> flatMap(Function<? super T, ? extends Promise<R>> function);
+
+    /**
+     * Resolves returned promise with function result when this promise was failed
+     * (function receives reject reason), cancellation is passed as is.
+     */
+    public Promise<T> recover(Function<Object, ? extends T> function);
+
+    /**
+     * Action receives result (and null reason) on success, otherwise null result and
+     * reject/cancel reason. Returned promise is completed as this promise.
+     */
+    public Promise<T> whenComplete(BiConsumer<? super T, Object> action);
+    public Promise<Void> thenAccept(Consumer<? super T> action);
+
+    /**
+     * Returns future completed on the thread which completes this promise,
+     * cancellation of returned future cancels this promise.
+     */
+    public CompletableFuture<T> toCompletableFuture();
+
     public Promise<T> timeout(long msecs);
     public Promise<T> await();
 
+    /**
+     * Waits at most given time, elapsed wait doesn't affect the promise (unlike {@link #timeout(long)}).
+     *
+     * @return true if promise has been completed
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException;
+
     public T tryGet();
     public Object rawGet();
 
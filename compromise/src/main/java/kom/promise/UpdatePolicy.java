@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conflation policy for progress updates of a promise, see {@link Deferred#withUpdatePolicy(UpdatePolicy)}.
+ *
+ * Whatever policy is used, pending (conflated) value is delivered to listeners before terminal event.
+ */
+public final class UpdatePolicy {
+    public enum Mode {
+        /** latest value wins, listeners are notified not more often than once per interval */
+        LATEST,
+        /** values are accumulated and delivered as {@code List} when batch is full or delay elapsed */
+        BATCH,
+        /**
+         * while listeners handle an update (till every listener has returned, executor listeners
+         * included), new values replace each other, only latest is delivered next
+         */
+        DROP_WHILE_BUSY
+    }
+
+    private final Mode mode;
+    private final int batchSize;
+    private final long intervalNanos;
+
+    private UpdatePolicy(Mode mode, int batchSize, long intervalNanos) {
+        this.mode = mode;
+        this.batchSize = batchSize;
+        this.intervalNanos = intervalNanos;
+    }
+
+    public static UpdatePolicy latest(long minInterval, TimeUnit unit) {
+        if (minInterval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + minInterval);
+        }
+
+        return new UpdatePolicy(Mode.LATEST, 1, unit.toNanos(minInterval));
+    }
+
+    public static UpdatePolicy batch(int batchSize, long maxDelay, TimeUnit unit) {
+        if (batchSize < 1 || maxDelay <= 0) {
+            throw new IllegalArgumentException("Batch size and max delay must be positive");
+        }
+
+        return new UpdatePolicy(Mode.BATCH, batchSize, unit.toNanos(maxDelay));
+    }
+
+    public static UpdatePolicy dropWhileBusy() {
+        return new UpdatePolicy(Mode.DROP_WHILE_BUSY, 1, 0);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+}
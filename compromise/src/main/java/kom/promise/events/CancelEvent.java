@@ -16,4 +16,26 @@
 
 package kom.promise.events;
 
-public final class CancelEvent extends PromiseEvent {}
+/**
+ * Mutable by default (e.g. for events created by {@code AsyncContext#event(Class)} or pooled by
+ * custom contexts), {@link #immutable(Object)} creates event which can be shared as promise done
+ * state.
+ */
+public final class CancelEvent extends PromiseEvent {
+    public CancelEvent() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public CancelEvent(Object data) {
+        super(data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CancelEvent(Object data, boolean immutable) {
+        super(data, immutable);
+    }
+
+    public static CancelEvent immutable(Object data) {
+        return new CancelEvent(data, true);
+    }
+}
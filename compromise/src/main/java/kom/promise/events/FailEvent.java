@@ -16,4 +16,26 @@
 
 package kom.promise.events;
 
-public final class FailEvent extends PromiseEvent {}
+/**
+ * Mutable by default (e.g. for events created by {@code AsyncContext#event(Class)} or pooled by
+ * custom contexts), {@link #immutable(Object)} creates event which can be shared as promise done
+ * state.
+ */
+public final class FailEvent extends PromiseEvent {
+    public FailEvent() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public FailEvent(Object data) {
+        super(data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private FailEvent(Object data, boolean immutable) {
+        super(data, immutable);
+    }
+
+    public static FailEvent immutable(Object data) {
+        return new FailEvent(data, true);
+    }
+}
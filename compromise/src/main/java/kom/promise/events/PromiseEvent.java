@@ -16,10 +16,37 @@
 
 package kom.promise.events;
 
+/**
+ * Base promise event. Terminal events created by context factories ({@code immutable} variants of
+ * {@link SuccessEvent}, {@link FailEvent}, {@link CancelEvent}) get payload in constructor and
+ * reject {@link #setData}, so one instance serves as the promise done state and is passed to all
+ * callbacks. Events created by constructors and {@link UpdateEvent} stay mutable, e.g. for pooling.
+ */
 public class PromiseEvent<T> {
     private T data;
+    private final boolean immutable;
+
+    public PromiseEvent() {
+        this.immutable = false;
+    }
+
+    public PromiseEvent(T data) {
+        this(data, false);
+    }
 
+    protected PromiseEvent(T data, boolean immutable) {
+        this.data = data;
+        this.immutable = immutable;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if event is immutable
+     */
     public void setData(T data) {
+        if (immutable) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " is immutable");
+        }
+
         this.data = data;
     }
 
@@ -16,4 +16,24 @@
 
 package kom.promise.events;
 
-public final class SuccessEvent<T> extends PromiseEvent<T> {}
+/**
+ * Mutable by default (e.g. for events created by {@code AsyncContext#event(Class)} or pooled by
+ * custom contexts), {@link #immutable(Object)} creates event which can be shared as promise done
+ * state.
+ */
+public final class SuccessEvent<T> extends PromiseEvent<T> {
+    public SuccessEvent() {
+    }
+
+    public SuccessEvent(T data) {
+        super(data);
+    }
+
+    private SuccessEvent(T data, boolean immutable) {
+        super(data, immutable);
+    }
+
+    public static <T> SuccessEvent<T> immutable(T data) {
+        return new SuccessEvent<T>(data, true);
+    }
+}
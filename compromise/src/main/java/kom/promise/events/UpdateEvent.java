@@ -16,4 +16,11 @@
 
 package kom.promise.events;
 
-public final class UpdateEvent<T> extends PromiseEvent<T> {}
+public final class UpdateEvent<T> extends PromiseEvent<T> {
+    public UpdateEvent() {
+    }
+
+    public UpdateEvent(T data) {
+        super(data);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import kom.promise.Promise;
+import kom.promise.events.PromiseEvent;
+import kom.promise.util.AsyncContext;
+
+/**
+ * Immutable promise which is completed at construction time.
+ *
+ * Callbacks are executed immediately, termination requests ({@code cancel}, {@code timeout})
+ * are ignored. Shared instances (see {@link AsyncContext#resolved(Object)}) are never mutated,
+ * {@link #setTag(Object)} on them throws {@code UnsupportedOperationException}.
+ */
+public final class CompletedPromise<T> extends PromiseImpl<T> {
+    private final boolean shared;
+
+    public CompletedPromise(AsyncContext context, PromiseEvent<?> event) {
+        this(context, event, false);
+    }
+
+    public CompletedPromise(AsyncContext context, PromiseEvent<?> event, boolean shared) {
+        super(context, event);
+        this.shared = shared;
+    }
+
+    @Override
+    public void setContext(AsyncContext context) {
+        if (context() != null) {
+            throw new UnsupportedOperationException("Completed promise can't change context");
+        }
+
+        super.setContext(context);
+    }
+
+    @Override
+    public boolean cancel(Object data) {
+        return false;
+    }
+
+    @Override
+    public Promise<T> timeout(long msecs) {
+        return this;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if promise is shared per-context constant, tag of it
+     *                                       would be seen by all users of the constant
+     */
+    @Override
+    public Promise<T> setTag(Object value) {
+        if (shared) {
+            throw new UnsupportedOperationException("Shared completed promise can't be tagged");
+        }
+
+        return super.setTag(value);
+    }
+}
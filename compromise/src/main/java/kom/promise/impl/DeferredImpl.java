@@ -18,8 +18,7 @@ package kom.promise.impl;
 
 import kom.promise.Deferred;
 import kom.promise.Promise;
-import kom.promise.events.FailEvent;
-import kom.promise.events.SuccessEvent;
+import kom.promise.UpdatePolicy;
 import kom.promise.events.UpdateEvent;
 import kom.promise.util.AsyncContext;
 
@@ -31,12 +30,12 @@ public class DeferredImpl<T> extends PromiseImpl<T> implements Deferred<T> {
 
     @Override
     public boolean resolve(T data) {
-        return triggerEventAndStopProcessing(SuccessEvent.class, data);
+        return triggerEventAndStopProcessing(context().successEvent(data));
     }
 
     @Override
     public boolean reject(Object data) {
-        return triggerEventAndStopProcessing(FailEvent.class, data);
+        return triggerEventAndStopProcessing(context().failEvent(data));
     }
 
     @Override
@@ -48,4 +47,10 @@ public class DeferredImpl<T> extends PromiseImpl<T> implements Deferred<T> {
     public Promise<T> getPromise() {
         return this;
     }
+
+    @Override
+    public Deferred<T> withUpdatePolicy(UpdatePolicy policy) {
+        setUpdatePolicy(policy);
+        return this;
+    }
 }
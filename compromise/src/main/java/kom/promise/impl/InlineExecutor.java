@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executes tasks on the calling thread. Tasks submitted by a task which is being executed are
+ * queued and run after it, so callbacks which complete other promises don't recurse.
+ */
+public final class InlineExecutor implements Executor {
+    private static final InlineExecutor INSTANCE = new InlineExecutor();
+
+    private InlineExecutor() {
+    }
+
+    public static Executor getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException("Command can't be null");
+        }
+
+        Trampoline.execute(command);
+    }
+
+    /**
+     * Runs tasks (and stage completions) queued on the calling thread behind the task being
+     * executed. Code which blocks on promises from inside a callback must call it first,
+     * promise await methods do it themselves.
+     */
+    public static void runPending() {
+        Trampoline.drain();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.util.callback.Callback;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * CompletableFuture view of promise, completed inline from promise terminal event.
+ * Cancellation of the future cancels the promise.
+ */
+final class PromiseCompletableFuture<T> extends CompletableFuture<T> implements Callback<PromiseEvent<?>> {
+    private final Promise<T> promise;
+
+    PromiseCompletableFuture(Promise<T> promise) {
+        this.promise = promise;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handle(PromiseEvent<?> event) {
+        final Object data = event.getData();
+
+        if (event instanceof SuccessEvent) {
+            complete((T) data);
+        } else if (event instanceof CancelEvent) {
+            completeExceptionally(toCancellation(data));
+        } else if (data instanceof Throwable) {
+            completeExceptionally((Throwable) data);
+        } else {
+            completeExceptionally(new ExecutionException("Promise was failed with reason: " + data, null));
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final boolean result = super.cancel(mayInterruptIfRunning);
+
+        if (result) {
+            promise.cancel(new CancellationException("CompletableFuture was cancelled"));
+        }
+
+        return result;
+    }
+
+    private static CancellationException toCancellation(Object reason) {
+        if (reason instanceof CancellationException) {
+            return (CancellationException) reason;
+        }
+
+        final CancellationException result = new CancellationException("Promise was cancelled"
+                + (reason == null ? "" : " with reason: " + reason));
+        if (reason instanceof Throwable) {
+            result.initCause((Throwable) reason);
+        }
+
+        return result;
+    }
+}
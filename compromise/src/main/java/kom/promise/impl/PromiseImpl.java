@@ -16,37 +16,62 @@
 
 package kom.promise.impl;
 
-import kom.events.DefaultEventDispatcher;
-import kom.events.EventDispatcher;
 import kom.promise.Promise;
+import kom.promise.UpdatePolicy;
 import kom.promise.events.*;
 import kom.promise.util.AsyncContext;
+import kom.promise.util.TimeoutScheduler.Timeout;
 import kom.util.callback.Callback;
 
-import java.util.TimerTask;
+import java.util.Arrays;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static kom.promise.util.AsyncUtils.defaultContext;
 
+/**
+ * Promise implementation based on a single CAS'd state word.
+ *
+ * While promise is pending the state word holds the head of an intrusive lock-free stack of
+ * {@link Completion} nodes (listeners and parked waiters), {@code null} when nobody listens.
+ * Completion swaps the stack for the terminal {@link PromiseEvent} in one CAS and then runs
+ * the popped nodes in registration order.
+ *
+ * Representation is kept compact: no wrapper atomics (field updaters only) and nothing besides
+ * the promise itself is allocated until somebody listens, waits or sets a timeout. On 64-bit
+ * HotSpot with compressed oops a pending {@code DeferredImpl} is 32 bytes (was ~1.1 KB with
+ * per-promise dispatcher, lock, condition and atomics), each listener or waiter adds one
+ * 24 bytes node. Sizes are measured via Instrumentation#getObjectSize, the same instance
+ * layout numbers JOL reports.
+ */
 public class PromiseImpl<T> implements Promise<T> {
     private static final Logger log = Logger.getLogger(Promise.class.getName());
 
-    private final EventDispatcher<PromiseEvent> dispatcher = new DefaultEventDispatcher<PromiseEvent>(PromiseEvent.class);
-    private final ReentrantLock lock = new ReentrantLock();
-    private final Condition awaiter = lock.newCondition();
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 6 : 0;
 
-    private final AtomicReference<TimerTask> timerTask = new AtomicReference<TimerTask>(null);
-    private final AtomicReference<AsyncContext> context = new AtomicReference<AsyncContext>(null);
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<PromiseImpl, Object> STATE
+            = AtomicReferenceFieldUpdater.newUpdater(PromiseImpl.class, Object.class, "state");
 
-    private volatile AtomicReference<PromiseEvent<?>> doneEvent = new AtomicReference<PromiseEvent<?>>(null);
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<PromiseImpl, Timeout> TIMEOUT
+            = AtomicReferenceFieldUpdater.newUpdater(PromiseImpl.class, Timeout.class, "timeout");
+
+    private volatile AsyncContext context = null;
+    private volatile Timeout timeout = null;
+    private volatile Object state = null;
     private volatile Object tag = null;
 
     public PromiseImpl() {
@@ -57,22 +82,27 @@ public class PromiseImpl<T> implements Promise<T> {
         setContext(context);
     }
 
+    /**
+     * Creates already completed promise, used for constant promises only.
+     */
+    protected PromiseImpl(AsyncContext context, PromiseEvent<?> doneEvent) {
+        setContext(context);
+        this.state = doneEvent;
+    }
+
     public void setContext(AsyncContext context) {
         if (context == null) {
-            this.context.set(defaultContext());
+            this.context = defaultContext();
         } else {
-            this.context.set(context);
+            this.context = context;
         }
-
-        dispatcher.setCallbackExecutor(this.context.get().getCallbackExecutor());
     }
 
 
 
     @Override
     public Promise<T> onSuccess(Callback<SuccessEvent<T>> callback) {
-        //noinspection unchecked
-        return attachCallback(SuccessEvent.class, (Callback)callback);
+        return attachCallback(SuccessEvent.class, callback);
     }
 
     @Override
@@ -95,11 +125,88 @@ public class PromiseImpl<T> implements Promise<T> {
         return attachCallback(PromiseEvent.class, callback);
     }
 
+    @Override
+    public Promise<T> onSuccess(Callback<SuccessEvent<T>> callback, Executor executor) {
+        return attachCallback(SuccessEvent.class, callback, executor);
+    }
+
+    @Override
+    public Promise<T> onFail(Callback<FailEvent> callback, Executor executor) {
+        return attachCallback(FailEvent.class, callback, executor);
+    }
+
+    @Override
+    public Promise<T> onUpdate(Callback<? super UpdateEvent<?>> callback, Executor executor) {
+        return attachCallback(UpdateEvent.class, callback, executor);
+    }
+
+    @Override
+    public Promise<T> onCancel(Callback<CancelEvent> callback, Executor executor) {
+        return attachCallback(CancelEvent.class, callback, executor);
+    }
+
+    @Override
+    public Promise<T> onAny(Callback<? super PromiseEvent<?>> callback, Executor executor) {
+        return attachCallback(PromiseEvent.class, callback, executor);
+    }
+
+
+
+    @Override
+    public <R> Promise<R> map(Function<? super T, ? extends R> function) {
+        checkNotNull(function);
+        return then(new StagePromise.Map<T, R>(context(), function));
+    }
+
+    @Override
+    public <R> Promise<R> flatMap(Function<? super T, ? extends Promise<R>> function) {
+        checkNotNull(function);
+        return then(new StagePromise.FlatMap<T, R>(context(), function));
+    }
+
+    @Override
+    public Promise<T> recover(Function<Object, ? extends T> function) {
+        checkNotNull(function);
+        return then(new StagePromise.Recover<T>(context(), function));
+    }
+
+    @Override
+    public Promise<T> whenComplete(BiConsumer<? super T, Object> action) {
+        checkNotNull(action);
+        return then(new StagePromise.WhenComplete<T>(context(), action));
+    }
+
+    @Override
+    public Promise<Void> thenAccept(Consumer<? super T> action) {
+        checkNotNull(action);
+        return then(new StagePromise.Accept<T>(context(), action));
+    }
+
+    @Override
+    public CompletableFuture<T> toCompletableFuture() {
+        final PromiseCompletableFuture<T> future = new PromiseCompletableFuture<T>(this);
+        attachTerminalCallback(future);
+
+        return future;
+    }
+
+    private <R> Promise<R> then(StagePromise<T, R> stage) {
+        attachTerminalCallback(stage);
+        return stage;
+    }
+
+    private static void checkNotNull(Object function) {
+        if (function == null) {
+            throw new NullPointerException("Function can't be null");
+        }
+    }
+
 
 
     @Override
     public boolean cancel(Object data) {
-        return triggerEventAndStopProcessing(CancelEvent.class, data);
+        // as Future.cancel, just returns false for completed promise
+        return !isDone() && complete(context().cancelEvent(data));
     }
 
     @Override
@@ -114,29 +221,21 @@ public class PromiseImpl<T> implements Promise<T> {
 
     @Override
     public Promise<T> timeout(long msecs) {
-        final TimerTask task = new TimerTask() {
+        final Timeout timeout = context().scheduleRunnable(new Runnable() {
             @Override
             public void run() {
                 PromiseImpl.this.cancel(new TimeoutException("Promise was cancelled by timeout"));
             }
-        };
+        }, msecs, TimeUnit.MILLISECONDS);
 
-        if (!timerTask.compareAndSet(null, task)) {
+        if (!TIMEOUT.compareAndSet(this, null, timeout)) {
+            timeout.cancel();
             throw new IllegalStateException("Promise has already been timeout");
         }
 
-        onAny(new Callback<PromiseEvent>() {
-            @Override
-            public void handle(PromiseEvent event) {
-                if (event.getClass() == UpdateEvent.class) {
-                    return;
-                }
-
-                timerTask.get().cancel();
-            }
-        });
-
-        context().getScheduler().schedule(timerTask.get(), msecs);
+        if (isDone()) { // completion could miss just stored timeout
+            timeout.cancel();
+        }
 
         return this;
     }
@@ -150,24 +249,189 @@ public class PromiseImpl<T> implements Promise<T> {
         return this;
     }
 
+    @Override
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (unit == null) {
+            throw new NullPointerException("Unit can't be null");
+        }
+
+        return awaitNanos(unit.toNanos(timeout));
+    }
+
     private void waitForTaskToBeCompleted() {
-        lock.lock();
+        Trampoline.drain(); // completion may be queued on this very thread
+
+        if (isDone() || spin()) {
+            return;
+        }
+
+        pushWaiter();
+        boolean interrupted = false;
+
+        while (!isDone()) {
+            LockSupport.park(this);
+
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deadline based wait: spins shortly, then parks until completion or deadline. Waiter which
+     * gives up is marked dead and unlinked, so repeated timed waits on long running promise don't
+     * accumulate nodes.
+     *
+     * @return true if promise has been completed
+     */
+    private boolean awaitNanos(long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        Trampoline.drain(); // completion may be queued on this very thread
+
+        if (isDone() || nanos <= 0) {
+            return isDone();
+        }
+
+        final long deadline = System.nanoTime() + nanos;
+        if (spin()) {
+            return true;
+        }
+
+        final Waiter waiter = pushWaiter();
         try {
             while (!isDone()) {
-                awaiter.awaitUninterruptibly();
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return false;
+                }
+
+                LockSupport.parkNanos(this, nanos);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
             }
+
+            return true;
         } finally {
-            lock.unlock();
+            if (waiter != null && !isDone()) {
+                waiter.thread = null;
+                unlinkDead();
+            }
         }
     }
 
+    /**
+     * @return true if promise has been completed while spinning
+     */
+    private boolean spin() {
+        for (int spins = SPINS; spins > 0; --spins) {
+            if (isDone()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return pushed waiter or null if promise has been completed
+     */
+    private Waiter pushWaiter() {
+        final Waiter waiter = new Waiter(Thread.currentThread());
+
+        Object current = state;
+        while (!(current instanceof PromiseEvent)) {
+            waiter.next = skipDead((Completion) current);
+            if (STATE.compareAndSet(this, current, waiter)) {
+                return waiter;
+            }
+
+            current = state;
+        }
+
+        return null;
+    }
+
+    /**
+     * Unlinks dead nodes (waiters which have given up, detached listeners) as FutureTask does:
+     * stack top by CAS, inner nodes by rewriting link of live predecessor. Unlinked node keeps its
+     * own link, so concurrent walker standing on it still reaches the rest of the stack.
+     */
+    private void unlinkDead() {
+        retry:
+        for (;;) {
+            final Object current = state;
+            if (current instanceof PromiseEvent) {
+                return;
+            }
+
+            Completion pred = null;
+            for (Completion node = (Completion) current; node != null; ) {
+                final Completion next = node.next;
+                if (!node.isDead()) {
+                    pred = node;
+                } else if (pred != null) {
+                    pred.next = next;
+                    if (pred.isDead()) { // predecessor died meanwhile, start over
+                        continue retry;
+                    }
+                } else if (!STATE.compareAndSet(this, node, next)) {
+                    continue retry;
+                }
+
+                node = next;
+            }
+
+            return;
+        }
+    }
+
+    private static Completion skipDead(Completion head) {
+        while (head != null && head.isDead()) {
+            head = head.next;
+        }
+
+        return head;
+    }
+
+    /**
+     * Detaches callback registered on this promise (matched by identity), so pending promise
+     * doesn't keep it reachable. Callback may still be called if promise is being completed.
+     *
+     * @return false if callback hasn't been found (or promise has been completed)
+     */
+    public boolean detachCallback(Callback<?> callback) {
+        final Object current = state;
+        if (callback == null || current instanceof PromiseEvent) {
+            return false;
+        }
+
+        for (Completion node = (Completion) current; node != null; node = node.next) {
+            if (node instanceof Listener && ((Listener) node).callback == callback) {
+                ((Listener) node).callback = null;
+                unlinkDead();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Override
     public T tryGet() {
         await();
 
         if (isSuccessed()) {
             //noinspection unchecked
-            return ((SuccessEvent<T>) doneEvent.get()).getData();
+            return ((SuccessEvent<T>) doneEvent()).getData();
         }
 
         return null;
@@ -177,7 +441,7 @@ public class PromiseImpl<T> implements Promise<T> {
     public Object rawGet() {
         await();
 
-        return doneEvent.get().getData();
+        return doneEvent().getData();
     }
 
     @Override
@@ -186,10 +450,10 @@ public class PromiseImpl<T> implements Promise<T> {
 
         if (isSuccessed()) {
             //noinspection unchecked
-            return ((SuccessEvent<T>) doneEvent.get()).getData();
+            return ((SuccessEvent<T>) doneEvent()).getData();
         }
 
-        final Object data = doneEvent.get().getData();
+        final Object data = doneEvent().getData();
         if (data instanceof InterruptedException)
             throw (InterruptedException)data;
 
@@ -211,110 +475,340 @@ public class PromiseImpl<T> implements Promise<T> {
     }
 
 
+    /**
+     * Timed wait doesn't touch the promise: it's neither cancelled on timeout nor prevented from
+     * having its own {@link #timeout(long)}, so many callers may wait with different deadlines.
+     */
     @Override
     public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        if (unit == null) {
-            throw new NullPointerException("Unit can't be null");
+        if (!await(timeout, unit)) {
+            throw new TimeoutException("Promise was not completed in " + timeout + " " + unit);
         }
 
-        try {
-            return timeout(unit.convert(timeout, TimeUnit.MILLISECONDS)).get();
-        } catch (ExecutionException e) {
-            if (e.getCause() instanceof TimeoutException) {
-                throw (TimeoutException)e.getCause();
-            }
-
-            throw e;
-        }
+        return get();
     }
 
     protected <A extends PromiseEvent<Object>> boolean triggerEvent(Class<A> reasonType, Object data) {
-        if (isDone()) {
+        final Object current = state;
+        if (current instanceof PromiseEvent) {
             warningAboutCompletedTask(reasonType);
             return false;
         }
 
-        final A reason = context().event(reasonType);
-        reason.setData(data);
+        final UpdateGate gate = (Class<?>) reasonType == UpdateEvent.class ? findGate((Completion) current) : null;
+        if (gate != null) {
+            gate.offer(data);
+            return true;
+        }
+
+        if (!hasListeners((Completion) current, reasonType)) {
+            return true; // nobody listens, event is not created at all
+        }
+
+        notifyListeners((Completion) current, context().event(reasonType, data), null);
 
-        dispatcher.dispatchEvent(reason);
+        return true;
+    }
+
+    /**
+     * Enables conflation of update events, policy can be set only once.
+     */
+    protected void setUpdatePolicy(UpdatePolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("Update policy can't be null");
+        }
+
+        final UpdateGate gate = new UpdateGate(this, policy);
+        Object current = state;
+        while (!(current instanceof PromiseEvent)) {
+            if (findGate((Completion) current) != null) {
+                throw new IllegalStateException("Update policy has already been set");
+            }
+
+            gate.next = (Completion) current;
+            if (STATE.compareAndSet(this, current, gate)) {
+                return;
+            }
+
+            current = state;
+        }
+    }
+
+    /**
+     * Delivers (conflated) update to listeners of given stack.
+     *
+     * @param gate gate which tracks listeners until they return, null if delivery isn't tracked
+     */
+    private void dispatchUpdate(Completion head, Object data, UpdateGate gate) {
+        if (hasListeners(head, UpdateEvent.class)) {
+            notifyListeners(head, context().updateEvent(data), gate);
+        }
+    }
+
+    protected boolean triggerEvent(PromiseEvent<?> event) {
+        final Object current = state;
+        if (current instanceof PromiseEvent) {
+            warningAboutCompletedTask(event.getClass());
+            return false;
+        }
+
+        notifyListeners((Completion) current, event, null);
 
         return true;
     }
 
     protected <A extends PromiseEvent<Object>> boolean triggerEventAndStopProcessing(Class<A> reasonType, Object data) {
-        final PromiseEvent<Object> event = context().event(reasonType);
+        return triggerEventAndStopProcessing(context().event(reasonType, data));
+    }
 
-        if (!doneEvent.compareAndSet(null, event)) {
-            warningAboutCompletedTask(reasonType);
+    protected boolean triggerEventAndStopProcessing(PromiseEvent<?> event) {
+        if (!complete(event)) {
+            warningAboutCompletedTask(event.getClass());
             return false;
         }
 
-        event.setData(data);
-        dispatcher.dispatchEvent(event);
-        notifyAboutTaskCompleted();
+        return true;
+    }
+
+    /**
+     * @return false (without warning) if promise has already been completed
+     */
+    private boolean complete(PromiseEvent<?> event) {
+        Object current;
+        do {
+            current = state;
+            if (current instanceof PromiseEvent) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, current, event));
+
+        final Timeout timeout = this.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
+        final Completion[] nodes = snapshot((Completion) current);
+        final UpdateGate gate = findGate((Completion) current);
+        if (gate != null && !gate.terminate((Completion) current, nodes, event)) {
+            return true; // gate is being drained, drainer notifies after the last update
+        }
+
+        notifyAboutTaskCompleted(nodes, event);
 
         return true;
     }
 
-    private <A extends PromiseEvent<Object>> void warningAboutCompletedTask(Class<A> reasonType) {
-        log.log(Level.WARNING, "Promise was notified with reason " + reasonType.getSimpleName() + "\n"
+    private void warningAboutCompletedTask(Class<?> reasonType) {
+        // work which finishes after cancellation (e.g. loser of earlier/firstSuccess) is expected
+        final Level level = doneEvent() instanceof CancelEvent ? Level.FINE : Level.WARNING;
+        if (!log.isLoggable(level)) {
+            return;
+        }
+
+        log.log(level, "Promise was notified with reason " + reasonType.getSimpleName() + "\n"
                 + "But this promise has already been stopped by reason "
-                + this.doneEvent.get().getClass().getSimpleName());
+                + doneEvent().getClass().getSimpleName());
+    }
+
+    /**
+     * Delivers non terminal event to matched listeners. Links of pushed nodes are only rewritten
+     * to skip dead nodes, so the stack can be walked while completion takes its snapshot, listeners
+     * are collected first and executed in registration order.
+     */
+    private void notifyListeners(Completion head, PromiseEvent<?> event, UpdateGate gate) {
+        int count = 0;
+        for (Completion node = head; node != null; node = node.next) {
+            if (node.accepts(event.getClass())) {
+                ++count;
+            }
+        }
+
+        if (count == 0) {
+            return;
+        }
+
+        final Listener[] listeners = new Listener[count];
+        for (Completion node = head; node != null && count > 0; node = node.next) {
+            if (node.accepts(event.getClass())) {
+                listeners[--count] = (Listener) node;
+            }
+        }
+
+        for (Listener listener : listeners) {
+            if (listener != null) { // listener may be removed between passes
+                executeCallback(listener, event, gate);
+            }
+        }
     }
 
-    private void notifyAboutTaskCompleted() {
-        lock.lock();
+    /**
+     * Runs snapshot of popped stack: listeners first (as event dispatching did before), after that
+     * wakes up parked waiters, so awaiting thread observes already executed callbacks.
+     */
+    private void notifyAboutTaskCompleted(Completion[] nodes, PromiseEvent<?> event) {
         try {
-            awaiter.signalAll();
+            for (Completion node : nodes) {
+                if (node != null && node.completes(event.getClass())) {
+                    executeCallback((Listener) node, event, null);
+                }
+            }
         } finally {
-            lock.unlock();
+            for (Completion node : nodes) {
+                if (node instanceof Waiter) {
+                    final Thread thread = ((Waiter) node).thread;
+                    if (thread != null) { // null for waiter which has given up
+                        LockSupport.unpark(thread);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean hasListeners(Completion head, Class<?> eventType) {
+        for (Completion node = head; node != null; node = node.next) {
+            if (node.accepts(eventType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static UpdateGate findGate(Completion head) {
+        for (Completion node = head; node != null; node = node.next) {
+            if (node instanceof UpdateGate) {
+                return (UpdateGate) node;
+            }
         }
+
+        return null;
+    }
+
+    /**
+     * Copies detached stack into array in registration order, nodes themselves are not modified.
+     */
+    private static Completion[] snapshot(Completion head) {
+        int count = 0;
+        for (Completion node = head; node != null; node = node.next) {
+            ++count;
+        }
+
+        final Completion[] result = new Completion[count];
+        for (Completion node = head; node != null && count > 0; node = node.next) {
+            result[--count] = node;
+        }
+
+        return result;
+    }
+
+    /**
+     * Attaches callback which observes terminal event only, update events are skipped.
+     */
+    public Promise<T> attachTerminalCallback(Callback<? super PromiseEvent<?>> callback) {
+        return attachCallback(null, callback);
+    }
+
+    private Promise<T> attachCallback(Class<?> observedEvent, Callback<?> callback) {
+        return attachCallback(observedEvent, callback, null);
     }
 
-    private <A extends PromiseEvent> Promise<T> attachCallback(Class<A> observedEvent, Callback<? super A> callback) {
+    /**
+     * Callback type is checked by public signatures, it gets events of observed type only.
+     */
+    private Promise<T> attachCallback(Class<?> observedEvent, Callback<?> callback, Executor executor) {
         if (callback == null) {
             throw new NullPointerException("Callback can't be null");
         }
 
-        if (isDone()) {
-            //noinspection unchecked
-            executeCallback(observedEvent, (Callback<PromiseEvent>) callback);
-        } else {
-            dispatcher.addEventListener(observedEvent, callback);
+        Listener listener = null;
+        Object current = state;
+        while (!(current instanceof PromiseEvent)) {
+            if (listener == null) {
+                listener = executor == null
+                        ? new Listener(observedEvent, callback)
+                        : new ExecutorListener(observedEvent, callback, executor);
+            }
+
+            listener.next = (Completion) current;
+            if (STATE.compareAndSet(this, current, listener)) {
+                return this;
+            }
+
+            current = state;
+        }
+
+        if (observedEvent == null || observedEvent.isInstance(current)) {
+            executeCallback(Listener.erase(callback), executor, (PromiseEvent<?>) current, null);
         }
 
         return this;
     }
 
-    private <A extends PromiseEvent> void executeCallback(Class<A> observedEvent, Callback<PromiseEvent> callback) {
-        if ((observedEvent == PromiseEvent.class) || (doneEvent.get().getClass() == observedEvent)) {
-            context().executeCallback(callback, doneEvent.get());
+    /**
+     * Callback without own executor goes to the context executor through the trampoline, so callback
+     * which completes another promise doesn't recurse into its listeners. Failure to hand callback
+     * over (e.g. rejected by executor) is logged, other listeners and waiters are still notified.
+     */
+    private void executeCallback(Callback<Object> callback, Executor executor, PromiseEvent<?> event,
+                                 UpdateGate gate) {
+        Runnable task = executor == null
+                ? new ContextCallbackTask(context(), callback, event)
+                : new CallbackTask(callback, event);
+        final Tracked tracked = gate == null ? null : new Tracked(gate, task);
+        if (tracked != null) {
+            task = tracked;
+        }
+
+        try {
+            if (executor == null) {
+                Trampoline.execute(task);
+            } else {
+                executor.execute(task);
+            }
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, e.getMessage(), e);
+
+            if (tracked != null) {
+                tracked.finish(); // rejected task never runs
+            }
+        }
+    }
+
+    private void executeCallback(Listener listener, PromiseEvent<?> event, UpdateGate gate) {
+        final Callback<Object> callback = listener.callback;
+        if (callback != null) { // listener may be detached meanwhile
+            executeCallback(callback, listener.executor(), event, gate);
         }
     }
 
     protected AsyncContext context() {
-        return context.get();
+        return context;
+    }
+
+    protected PromiseEvent<?> doneEvent() {
+        final Object current = state;
+
+        return current instanceof PromiseEvent ? (PromiseEvent<?>) current : null;
     }
 
     @Override
     public boolean isDone() {
-        return doneEvent.get() != null;
+        return state instanceof PromiseEvent;
     }
 
     @Override
     public boolean isCancelled() {
-        return isDone() && doneEvent.get().getClass() == CancelEvent.class;
+        return doneEvent() instanceof CancelEvent;
     }
 
     @Override
     public boolean isSuccessed() {
-        return isDone() && doneEvent.get().getClass() == SuccessEvent.class;
+        return doneEvent() instanceof SuccessEvent;
     }
 
     @Override
     public boolean isFailed() {
-        return isDone() && doneEvent.get().getClass() == FailEvent.class;
+        return doneEvent() instanceof FailEvent;
     }
 
     @Override
@@ -327,4 +821,409 @@ public class PromiseImpl<T> implements Promise<T> {
     public Object getTag() {
         return tag;
     }
+
+    /**
+     * Node of pending completions stack.
+     */
+    private abstract static class Completion {
+        Completion next;
+
+        /**
+         * @return true if node can be unlinked
+         */
+        boolean isDead() {
+            return false;
+        }
+
+        /**
+         * @return true if node observes non terminal event of given type
+         */
+        abstract boolean accepts(Class<?> eventType);
+
+        /**
+         * @return true if node observes terminal event of given type
+         */
+        boolean completes(Class<?> eventType) {
+            return accepts(eventType);
+        }
+    }
+
+    private static class Listener extends Completion {
+        final Class<?> observed; // null for terminal only listener
+        volatile Callback<Object> callback; // null for detached listener
+
+        Listener(Class<?> observed, Callback<?> callback) {
+            this.observed = observed;
+            this.callback = erase(callback);
+        }
+
+        @SuppressWarnings("unchecked")
+        static Callback<Object> erase(Callback<?> callback) {
+            return (Callback<Object>) callback;
+        }
+
+        Executor executor() {
+            return null;
+        }
+
+        @Override
+        boolean isDead() {
+            return callback == null;
+        }
+
+        @Override
+        boolean accepts(Class<?> eventType) {
+            return observed != null && observed.isAssignableFrom(eventType) && callback != null;
+        }
+
+        @Override
+        boolean completes(Class<?> eventType) {
+            return (observed == null || observed.isAssignableFrom(eventType)) && callback != null;
+        }
+    }
+
+    /**
+     * Listener with own executor, separate class keeps plain listener node at 24 bytes.
+     */
+    private static final class ExecutorListener extends Listener {
+        final Executor executor;
+
+        ExecutorListener(Class<?> observed, Callback<?> callback, Executor executor) {
+            super(observed, callback);
+            this.executor = executor;
+        }
+
+        @Override
+        Executor executor() {
+            return executor;
+        }
+    }
+
+    private static final class CallbackTask implements Runnable {
+        private final Callback<Object> callback;
+        private final PromiseEvent<?> event;
+
+        CallbackTask(Callback<Object> callback, PromiseEvent<?> event) {
+            this.callback = callback;
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            try {
+                callback.handle(event);
+            } catch (Exception e) {
+                log.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class ContextCallbackTask implements Runnable {
+        private final AsyncContext context;
+        private final Callback<Object> callback;
+        private final PromiseEvent<?> event;
+
+        ContextCallbackTask(AsyncContext context, Callback<Object> callback, PromiseEvent<?> event) {
+            this.context = context;
+            this.callback = callback;
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            context.executeCallback(callback, event);
+        }
+    }
+
+    /**
+     * Callback task which keeps update gate busy until the listener returns.
+     */
+    private static final class Tracked implements Runnable {
+        private static final AtomicIntegerFieldUpdater<Tracked> FINISHED
+                = AtomicIntegerFieldUpdater.newUpdater(Tracked.class, "finished");
+
+        private final UpdateGate gate;
+        private final Runnable task;
+        private volatile int finished = 0;
+
+        Tracked(UpdateGate gate, Runnable task) {
+            this.gate = gate;
+            this.task = task;
+            gate.acquire();
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                finish();
+            }
+        }
+
+        void finish() {
+            if (FINISHED.compareAndSet(this, 0, 1)) {
+                gate.release();
+            }
+        }
+    }
+
+    private static final class Waiter extends Completion {
+        volatile Thread thread;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        boolean isDead() {
+            return thread == null;
+        }
+
+        @Override
+        boolean accepts(Class<?> eventType) {
+            return false;
+        }
+    }
+
+    /**
+     * Stack node which conflates updates according to {@link UpdatePolicy}. Emission is serialized
+     * by work-in-progress counter, delayed emission is scheduled on the context timeout scheduler
+     * and performed by the context runnable executor. Completion sets terminated bit of the same
+     * counter, so terminal event is delivered either by completing thread (gate was idle) or by
+     * the drainer after its last update, never before it. In drop-while-busy mode delivered
+     * update keeps the gate busy until every listener (executor listeners included) has returned,
+     * value offered meanwhile stays pending and is emitted by the last returning listener.
+     */
+    private static final class UpdateGate extends Completion implements Runnable {
+        private static final Object NONE = new Object();
+        private static final int TERMINATED = 1 << 30;
+        private static final int IDLE = 0, TIMER = 1, EXECUTOR = 2;
+
+        private static final AtomicReferenceFieldUpdater<UpdateGate, Object> PENDING
+                = AtomicReferenceFieldUpdater.newUpdater(UpdateGate.class, Object.class, "pending");
+
+        private static final AtomicIntegerFieldUpdater<UpdateGate> WIP
+                = AtomicIntegerFieldUpdater.newUpdater(UpdateGate.class, "wip");
+
+        private static final AtomicIntegerFieldUpdater<UpdateGate> SCHEDULED
+                = AtomicIntegerFieldUpdater.newUpdater(UpdateGate.class, "scheduled");
+
+        private static final AtomicIntegerFieldUpdater<UpdateGate> BUSY
+                = AtomicIntegerFieldUpdater.newUpdater(UpdateGate.class, "busy");
+
+        private final PromiseImpl<?> promise;
+        private final UpdatePolicy policy;
+
+        private volatile Object pending = NONE; // latest value, or stack of batched items
+        private volatile int wip = 0;
+        private volatile int scheduled = IDLE;
+        private volatile int busy = 0; // listeners of delivered update which haven't returned yet
+        private long lastEmit = System.nanoTime() - (1L << 62); // guarded by wip
+
+        // set by completion, published by terminated bit
+        private Completion head;
+        private Completion[] nodes;
+        private PromiseEvent<?> event;
+
+        UpdateGate(PromiseImpl<?> promise, UpdatePolicy policy) {
+            this.promise = promise;
+            this.policy = policy;
+        }
+
+        @Override
+        boolean accepts(Class<?> eventType) {
+            return false;
+        }
+
+        void offer(Object data) {
+            switch (policy.getMode()) {
+                case BATCH:
+                    if (push(data) >= policy.getBatchSize()) {
+                        drain();
+                    } else {
+                        schedule(policy.getIntervalNanos());
+                    }
+                    break;
+
+                case LATEST:
+                    PENDING.set(this, data);
+                    drain(); // schedules itself when interval hasn't elapsed
+                    break;
+
+                default:
+                    PENDING.set(this, data);
+                    drain();
+            }
+        }
+
+        /**
+         * Timer task hands drain over to the context executor, listeners never run on timer thread.
+         */
+        @Override
+        public void run() {
+            if (SCHEDULED.compareAndSet(this, TIMER, EXECUTOR)) {
+                try {
+                    promise.context().executeRunnable(this);
+                    return;
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+
+            SCHEDULED.set(this, IDLE);
+            drain();
+        }
+
+        /**
+         * Called by completion with just popped stack.
+         *
+         * @return true if caller has to notify nodes, false if notification is left to the drainer
+         */
+        boolean terminate(Completion head, Completion[] nodes, PromiseEvent<?> event) {
+            this.head = head;
+            this.nodes = nodes;
+            this.event = event;
+
+            for (;;) {
+                final int current = wip;
+                if (current == 0) {
+                    if (WIP.compareAndSet(this, 0, TERMINATED)) {
+                        flush(); // listeners must see the final value before terminal event
+                        return true;
+                    }
+                } else if (WIP.compareAndSet(this, current, current | TERMINATED)) {
+                    return false;
+                }
+            }
+        }
+
+        private void drain() {
+            if (WIP.getAndIncrement(this) != 0) {
+                return; // being drained or terminated
+            }
+
+            int missed = 1;
+            for (;;) {
+                emit();
+
+                final int current = WIP.addAndGet(this, -missed);
+                if ((current & TERMINATED) != 0) {
+                    flush();
+                    promise.notifyAboutTaskCompleted(nodes, event);
+                    return;
+                }
+
+                if (current == 0) {
+                    return;
+                }
+
+                missed = current;
+            }
+        }
+
+        private void emit() {
+            if (policy.getMode() == UpdatePolicy.Mode.LATEST) {
+                final long wait = lastEmit + policy.getIntervalNanos() - System.nanoTime();
+                if (wait > 0) {
+                    schedule(wait);
+                    return;
+                }
+            }
+
+            final boolean tracked = policy.getMode() == UpdatePolicy.Mode.DROP_WHILE_BUSY;
+            if (tracked && busy != 0) {
+                return; // value stays pending, last returning listener drains it
+            }
+
+            final Object current = promise.state;
+            if (current instanceof PromiseEvent) {
+                return; // pending value is flushed before terminal event
+            }
+
+            final Object value = take();
+            if (value == NONE) {
+                return;
+            }
+
+            lastEmit = System.nanoTime();
+            if (!tracked) {
+                promise.dispatchUpdate((Completion) current, value, null);
+                return;
+            }
+
+            acquire(); // listeners returning while update is dispatched don't drain yet
+            try {
+                promise.dispatchUpdate((Completion) current, value, this);
+            } finally {
+                release();
+            }
+        }
+
+        private void flush() {
+            final Object value = take();
+            if (value != NONE) {
+                promise.dispatchUpdate(head, value, null);
+            }
+        }
+
+        void acquire() {
+            BUSY.incrementAndGet(this);
+        }
+
+        void release() {
+            if (BUSY.decrementAndGet(this) == 0 && pending != NONE) {
+                drain();
+            }
+        }
+
+        /**
+         * @return number of batched items including the pushed one
+         */
+        private int push(Object data) {
+            final Item item = new Item(data);
+            Object current;
+            do {
+                current = pending;
+                item.next = current == NONE ? null : (Item) current;
+                item.size = item.next == null ? 1 : item.next.size + 1;
+            } while (!PENDING.compareAndSet(this, current, item));
+
+            return item.size;
+        }
+
+        private Object take() {
+            final Object value = PENDING.getAndSet(this, NONE);
+            if (value == NONE || policy.getMode() != UpdatePolicy.Mode.BATCH) {
+                return value;
+            }
+
+            final Object[] result = new Object[((Item) value).size];
+            int index = result.length;
+            for (Item item = (Item) value; item != null; item = item.next) {
+                result[--index] = item.value;
+            }
+
+            return Arrays.asList(result);
+        }
+
+        private void schedule(long delayNanos) {
+            if (scheduled == IDLE && SCHEDULED.compareAndSet(this, IDLE, TIMER)) {
+                promise.context().getTimeoutScheduler().schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Batched value, {@code null} updates are kept as is.
+         */
+        private static final class Item {
+            final Object value;
+            Item next;
+            int size;
+
+            Item(Object value) {
+                this.value = value;
+            }
+        }
+    }
 }
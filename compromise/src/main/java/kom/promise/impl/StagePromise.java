@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import kom.promise.Promise;
+import kom.promise.events.FailEvent;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.promise.events.UpdateEvent;
+import kom.promise.util.AsyncContext;
+import kom.util.callback.Callback;
+
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Transformation stage: promise which is completed from terminal event of the source promise.
+ *
+ * Stage is its own source listener and is completed through {@link Trampoline}. Events which
+ * are passed through (fail/cancel for map, success for recover, ...) are reused as is,
+ * terminal events are immutable.
+ */
+abstract class StagePromise<S, R> extends PromiseImpl<R> implements Callback<PromiseEvent<?>> {
+    private PromiseEvent<?> sourceEvent = null;
+
+    StagePromise(AsyncContext context) {
+        super(context);
+    }
+
+    @Override
+    public final void handle(PromiseEvent<?> event) {
+        if (event instanceof UpdateEvent) {
+            return;
+        }
+
+        sourceEvent = event;
+        Trampoline.execute(this);
+    }
+
+    final void fire() {
+        final PromiseEvent<?> event = sourceEvent;
+        sourceEvent = null;
+
+        if (isDone()) { // stage was cancelled by client
+            return;
+        }
+
+        try {
+            onSourceCompleted(event);
+        } catch (Exception e) {
+            completeWith(context().failEvent(e));
+        }
+    }
+
+    protected abstract void onSourceCompleted(PromiseEvent<?> event) throws Exception;
+
+    /**
+     * Data of success event of the source, typed by the stage.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> V dataOf(PromiseEvent<?> event) {
+        return ((SuccessEvent<V>) event).getData();
+    }
+
+    protected final void completeWith(PromiseEvent<?> event) {
+        if (!isDone()) {
+            triggerEventAndStopProcessing(event);
+        }
+    }
+
+    static final class Map<S, R> extends StagePromise<S, R> {
+        private final Function<? super S, ? extends R> function;
+
+        Map(AsyncContext context, Function<? super S, ? extends R> function) {
+            super(context);
+            this.function = function;
+        }
+
+        @Override
+        protected void onSourceCompleted(PromiseEvent<?> event) {
+            if (event instanceof SuccessEvent) {
+                completeWith(context().successEvent(function.apply(StagePromise.<S>dataOf(event))));
+            } else {
+                completeWith(event);
+            }
+        }
+    }
+
+    static final class FlatMap<S, R> extends StagePromise<S, R> {
+        private final Function<? super S, ? extends Promise<R>> function;
+        private boolean awaitingInner = false;
+
+        FlatMap(AsyncContext context, Function<? super S, ? extends Promise<R>> function) {
+            super(context);
+            this.function = function;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected void onSourceCompleted(PromiseEvent<?> event) {
+            if (awaitingInner || !(event instanceof SuccessEvent)) {
+                completeWith(event);
+                return;
+            }
+
+            final Promise<R> inner = function.apply(StagePromise.<S>dataOf(event));
+            if (inner == null) {
+                throw new NullPointerException("FlatMap function returned null promise");
+            }
+
+            awaitingInner = true;
+
+            if (inner instanceof PromiseImpl) {
+                ((PromiseImpl<R>) inner).attachTerminalCallback(this);
+            } else {
+                inner.onAny((Callback) this); // raw as required by onAny
+            }
+        }
+    }
+
+    static final class Recover<T> extends StagePromise<T, T> {
+        private final Function<Object, ? extends T> function;
+
+        Recover(AsyncContext context, Function<Object, ? extends T> function) {
+            super(context);
+            this.function = function;
+        }
+
+        @Override
+        protected void onSourceCompleted(PromiseEvent<?> event) {
+            if (event instanceof FailEvent) {
+                completeWith(context().successEvent(function.apply(event.getData())));
+            } else {
+                completeWith(event);
+            }
+        }
+    }
+
+    static final class WhenComplete<T> extends StagePromise<T, T> {
+        private final BiConsumer<? super T, Object> action;
+
+        WhenComplete(AsyncContext context, BiConsumer<? super T, Object> action) {
+            super(context);
+            this.action = action;
+        }
+
+        @Override
+        protected void onSourceCompleted(PromiseEvent<?> event) {
+            if (event instanceof SuccessEvent) {
+                action.accept(StagePromise.<T>dataOf(event), null);
+            } else {
+                try {
+                    action.accept(null, event.getData());
+                } catch (RuntimeException e) {
+                    // original reason is more important than failure of action
+                }
+            }
+
+            completeWith(event);
+        }
+    }
+
+    static final class Accept<T> extends StagePromise<T, Void> {
+        private final Consumer<? super T> action;
+
+        Accept(AsyncContext context, Consumer<? super T> action) {
+            super(context);
+            this.action = action;
+        }
+
+        @Override
+        protected void onSourceCompleted(PromiseEvent<?> event) {
+            if (event instanceof SuccessEvent) {
+                action.accept(StagePromise.<T>dataOf(event));
+                completeWith(context().successEvent(null));
+            } else {
+                completeWith(event);
+            }
+        }
+    }
+}
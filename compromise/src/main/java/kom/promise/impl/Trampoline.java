@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs stage completions (and {@link InlineExecutor} tasks) of current thread in a loop instead
+ * of recursion, so long synchronous chains of stages can't overflow the stack.
+ */
+final class Trampoline {
+    private static final Logger log = Logger.getLogger(Trampoline.class.getName());
+
+    private static final ThreadLocal<Trampoline> current = new ThreadLocal<Trampoline>() {
+        @Override
+        protected Trampoline initialValue() {
+            return new Trampoline();
+        }
+    };
+
+    // stages are queued as is (they aren't Runnable, see RunnableCallbackExecutor)
+    private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+    private boolean running = false;
+
+    static void execute(StagePromise<?, ?> stage) {
+        enqueue(stage);
+    }
+
+    static void execute(Runnable task) {
+        enqueue(task);
+    }
+
+    /**
+     * Runs work queued on current thread by a trampoline which is already running there. Called
+     * before the thread blocks on a promise: completion it waits for may be queued behind the
+     * running task.
+     */
+    static void drain() {
+        final Trampoline trampoline = current.get();
+
+        if (trampoline.running) {
+            trampoline.runQueued();
+        }
+    }
+
+    private static void enqueue(Object task) {
+        final Trampoline trampoline = current.get();
+        trampoline.queue.addLast(task);
+
+        if (trampoline.running) {
+            return;
+        }
+
+        trampoline.running = true;
+        try {
+            trampoline.runQueued();
+        } finally {
+            trampoline.running = false;
+        }
+    }
+
+    /**
+     * Runs queue till it's empty. Error thrown by a task is rethrown only after the rest of queue
+     * has been run, otherwise queued stages would stay pending forever.
+     */
+    private void runQueued() {
+        Error error = null;
+
+        Object task;
+        while ((task = queue.pollFirst()) != null) {
+            try {
+                if (task instanceof StagePromise) {
+                    ((StagePromise<?, ?>) task).fire();
+                } else {
+                    ((Runnable) task).run();
+                }
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, e.getMessage(), e);
+            } catch (Error e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    log.log(Level.SEVERE, e.getMessage(), e);
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -17,24 +17,43 @@
 package kom.promise.util;
 
 import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import kom.promise.events.FailEvent;
 import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.promise.events.UpdateEvent;
+import kom.promise.impl.CompletedPromise;
 import kom.promise.impl.DeferredImpl;
 import kom.util.callback.Callback;
 import kom.util.callback.CallbackExecutor;
 import kom.util.callback.RunnableCallbackExecutor;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Timer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("UnusedDeclaration")
 public class AsyncContext {
-    private static final Timer scheduler = new Timer(true);
-
     private final CallbackExecutor callbackExecutor;
     private final ExecutorService runnableExecutor;
+    private final TimeoutScheduler timeoutScheduler;
+
+    private final Promise<Object> resolvedNull;
+    private final Promise<Boolean> resolvedTrue;
+    private final Promise<Boolean> resolvedFalse;
+    private final Promise<List<?>> resolvedEmptyList;
+    private final Promise<Object> cancelled;
 
     public AsyncContext(ExecutorService runnableExecutor, CallbackExecutor callbackExecutor) {
+        this(runnableExecutor, callbackExecutor, null);
+    }
+
+    public AsyncContext(ExecutorService runnableExecutor, CallbackExecutor callbackExecutor,
+                        TimeoutScheduler timeoutScheduler) {
         if (runnableExecutor == null) {
             runnableExecutor = Executors.newCachedThreadPool();
         }
@@ -44,8 +63,51 @@ public class AsyncContext {
             callbackExecutor.setRunnableExecutor(runnableExecutor);
         }
 
+        if (timeoutScheduler == null) {
+            timeoutScheduler = TimeoutSchedulerHolder.HOLDER_INSTANCE;
+        }
+
         this.runnableExecutor = runnableExecutor;
         this.callbackExecutor = callbackExecutor;
+        this.timeoutScheduler = timeoutScheduler;
+
+        // events are created directly: overridable factories must not be called from constructor
+        this.resolvedNull = constant(SuccessEvent.<Object>immutable(null));
+        this.resolvedTrue = constant(SuccessEvent.<Object>immutable(Boolean.TRUE));
+        this.resolvedFalse = constant(SuccessEvent.<Object>immutable(Boolean.FALSE));
+        this.resolvedEmptyList = constant(SuccessEvent.<Object>immutable(Collections.EMPTY_LIST));
+        this.cancelled = constant(CancelEvent.immutable(null));
+    }
+
+    /**
+     * Creates context which shares executors, timeout scheduler and shared completed promises
+     * (see {@link #resolved(Object)}) of given context, so derived contexts cost no extra constants.
+     */
+    protected AsyncContext(AsyncContext source) {
+        this.runnableExecutor = source.getRunnableExecutor();
+        this.callbackExecutor = source.getCallbackExecutor();
+        this.timeoutScheduler = source.getTimeoutScheduler();
+
+        this.resolvedNull = source.resolvedNull;
+        this.resolvedTrue = source.resolvedTrue;
+        this.resolvedFalse = source.resolvedFalse;
+        this.resolvedEmptyList = source.resolvedEmptyList;
+        this.cancelled = source.cancelled;
+    }
+
+    /**
+     * Returns shared context which runs every {@link #executeRunnable(Runnable)} in a new virtual thread.
+     * Promise waiting is park based (no monitors), so blocking-style {@link AsyncTask} code doesn't
+     * pin carrier threads.
+     *
+     * @throws UnsupportedOperationException if JVM has no virtual threads (Java 21+ required)
+     */
+    public static AsyncContext virtual() {
+        if (VirtualContextHolder.HOLDER_INSTANCE == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        }
+
+        return VirtualContextHolder.HOLDER_INSTANCE;
     }
 
     public <T> void executeCallback(Callback<T> callback, T data) {
@@ -60,22 +122,148 @@ public class AsyncContext {
         runnableExecutor.execute(runnable);
     }
 
+    /**
+     * Schedules task on {@link #getTimeoutScheduler()}, expired task is handed over to
+     * {@link #executeRunnable(Runnable)}, so shared timer thread isn't blocked by callbacks it
+     * triggers. Task runs on timer thread only if runnable executor rejects it.
+     */
+    public TimeoutScheduler.Timeout scheduleRunnable(final Runnable runnable, long delay, TimeUnit unit) {
+        return timeoutScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executeRunnable(runnable);
+                } catch (RuntimeException e) { // e.g. executor has been shut down, task still has to run
+                    runnable.run();
+                }
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Creates event with payload. Standard events are created by typed factories below,
+     * reflection is used for custom event types only.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // bound follows event(Class)
+    public <T extends PromiseEvent> T event(Class<T> reasonType, Object data) {
+        if (reasonType == SuccessEvent.class) {
+            return (T) successEvent(data);
+        }
+
+        if (reasonType == FailEvent.class) {
+            return (T) failEvent(data);
+        }
+
+        if (reasonType == CancelEvent.class) {
+            return (T) cancelEvent(data);
+        }
+
+        if (reasonType == UpdateEvent.class) {
+            return (T) updateEvent(data);
+        }
+
+        final T event = event(reasonType);
+        event.setData(data);
+
+        return event;
+    }
+
     public <T extends PromiseEvent> T event(Class<T> reasonType) {
         try {
-            // can use object pool in this point
             return reasonType.newInstance();
         } catch (Exception e) {
             throw new IllegalStateException("Can't create new instance for Event object", e);
         }
     }
 
+    public <T> SuccessEvent<T> successEvent(T data) {
+        return SuccessEvent.immutable(data);
+    }
+
+    public FailEvent failEvent(Object data) {
+        return FailEvent.immutable(data);
+    }
+
+    public CancelEvent cancelEvent(Object data) {
+        return CancelEvent.immutable(data);
+    }
+
+    public UpdateEvent<Object> updateEvent(Object data) {
+        // can use object pool in this point
+        return new UpdateEvent<Object>(data);
+    }
+
     public <T> Deferred<T> deferred() {
         // can use object pool in this point
         return new DeferredImpl<T>(this);
     }
 
+    /**
+     * Returns already resolved promise. Results {@code null}, {@code TRUE}, {@code FALSE} and
+     * {@code Collections.emptyList()} are served by shared per-context instances, which can't be
+     * tagged (see {@link CompletedPromise#setTag(Object)}).
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Promise<T> resolved(T data) {
+        if (data == null) {
+            return (Promise<T>) resolvedNull;
+        }
+
+        if (data == Boolean.TRUE) {
+            return (Promise<T>) resolvedTrue;
+        }
+
+        if (data == Boolean.FALSE) {
+            return (Promise<T>) resolvedFalse;
+        }
+
+        if (data == Collections.EMPTY_LIST) {
+            return (Promise<T>) resolvedEmptyList;
+        }
+
+        return new CompletedPromise<T>(this, successEvent(data));
+    }
+
+    public <T> Promise<T> rejected(Object reason) {
+        return new CompletedPromise<T>(this, failEvent(reason));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> Promise<T> cancelled() {
+        return (Promise<T>) cancelled;
+    }
+
+    public <T> Promise<T> cancelled(Object reason) {
+        if (reason == null) {
+            return cancelled();
+        }
+
+        return new CompletedPromise<T>(this, cancelEvent(reason));
+    }
+
+    private <T> Promise<T> constant(PromiseEvent<?> event) {
+        return new CompletedPromise<T>(this, event, true);
+    }
+
+    /**
+     * @deprecated promise timeouts use {@link #getTimeoutScheduler()}, this timer is kept for old clients only
+     */
+    @Deprecated
     public Timer getScheduler() {
-        return scheduler;
+        return TimerHolder.HOLDER_INSTANCE;
+    }
+
+    /**
+     * Returns time left for work started in this context, see {@link AsyncScope}.
+     *
+     * @return {@code Long.MAX_VALUE} for context without deadline
+     */
+    public long getRemaining(TimeUnit unit) {
+        return Long.MAX_VALUE;
+    }
+
+    public TimeoutScheduler getTimeoutScheduler() {
+        return timeoutScheduler;
     }
 
     public CallbackExecutor getCallbackExecutor() {
@@ -85,4 +273,28 @@ public class AsyncContext {
     public ExecutorService getRunnableExecutor() {
         return runnableExecutor;
     }
+
+    private static class TimeoutSchedulerHolder {
+        public static final TimeoutScheduler HOLDER_INSTANCE = new HashedWheelScheduler();
+    }
+
+    private static class TimerHolder {
+        public static final Timer HOLDER_INSTANCE = new Timer(true);
+    }
+
+    private static class VirtualContextHolder {
+        public static final AsyncContext HOLDER_INSTANCE = create();
+
+        private static AsyncContext create() {
+            final ExecutorService executor;
+            try {
+                // reflection keeps sources compatible with pre-21 JVMs
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                return null;
+            }
+
+            return new AsyncContext(executor, new RunnableCallbackExecutor(executor));
+        }
+    }
 }
\ No newline at end of file
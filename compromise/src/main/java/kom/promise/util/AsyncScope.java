@@ -0,0 +1,357 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import kom.promise.events.FailEvent;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.promise.events.UpdateEvent;
+import kom.promise.impl.PromiseImpl;
+import kom.util.callback.Callback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Context which ties promises to a cancellation tree (structured concurrency).
+ *
+ * Deferreds created by {@link #deferred()}, tasks created with this scope as context and promises
+ * passed to {@link #join(Promise)} become children of the scope. Scope created on top of another
+ * scope becomes its child, so cancellation goes down the whole subtree in one pass.
+ *
+ * {@link #getPromise()} is resolved when scope has been closed and all children have finished,
+ * or cancelled (with cancellation reason) when scope has been cancelled. Cancelling scope promise
+ * (e.g. by {@code timeout}) cancels the scope.
+ *
+ * Scope can have a deadline (inherited by nested scopes), tasks check remaining budget by
+ * {@link #getRemaining(TimeUnit)}.
+ *
+ * Children are kept in a lock-free stack: registration is O(1) (one CAS for the pending counter,
+ * one for the stack). Finished children are unlinked in one pass when their count reaches the
+ * count of pending ones (and a small minimum), so long-lived scope keeps at most about twice as
+ * many nodes as it has running children and compaction costs amortized O(1) per child.
+ */
+@SuppressWarnings("UnusedDeclaration")
+public class AsyncScope extends AsyncContext {
+    private static final AtomicReferenceFieldUpdater<AsyncScope, Child> HEAD
+            = AtomicReferenceFieldUpdater.newUpdater(AsyncScope.class, Child.class, "head");
+
+    private static final AtomicIntegerFieldUpdater<AsyncScope> PENDING
+            = AtomicIntegerFieldUpdater.newUpdater(AsyncScope.class, "pending");
+
+    private static final AtomicIntegerFieldUpdater<AsyncScope> CLOSED
+            = AtomicIntegerFieldUpdater.newUpdater(AsyncScope.class, "closed");
+
+    private static final AtomicIntegerFieldUpdater<AsyncScope> FINISHED
+            = AtomicIntegerFieldUpdater.newUpdater(AsyncScope.class, "finished");
+
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private final AsyncContext parent;
+    private final ScopePromise promise;
+    private final boolean bounded;
+    private final long deadline; // System.nanoTime based, valid for bounded scope only
+
+    private final Callback<PromiseEvent<?>> release = new Callback<PromiseEvent<?>>() {
+        @Override
+        public void handle(PromiseEvent<?> message) {
+            final int count = FINISHED.incrementAndGet(AsyncScope.this);
+            if (count >= COMPACT_THRESHOLD && count >= pending && FINISHED.compareAndSet(AsyncScope.this, count, 0)) {
+                compact();
+            }
+
+            release();
+        }
+    };
+
+    private volatile Child head = null;
+    private volatile int pending = 1; // children count plus one while scope is open
+    private volatile int closed = 0;
+    private volatile int finished = 0; // finished children which may still be linked
+
+    public AsyncScope() {
+        this(null);
+    }
+
+    public AsyncScope(AsyncContext parent) {
+        this(parent, -1);
+    }
+
+    /**
+     * Creates scope which is cancelled (with {@link TimeoutException}) when timeout elapses. Deadline
+     * of parent scope is inherited, own timer is scheduled only if this scope expires earlier, so
+     * whole subtree expires through one scheduler entry.
+     */
+    public AsyncScope(AsyncContext parent, long timeout, TimeUnit unit) {
+        this(parent, unit.toNanos(Math.max(0, timeout)));
+    }
+
+    private AsyncScope(AsyncContext parent, long timeoutNanos) {
+        super(contextOrDefault(parent));
+
+        this.parent = contextOrDefault(parent);
+        this.promise = new ScopePromise(this);
+
+        final long now = System.nanoTime();
+        final long inherited = this.parent.getRemaining(TimeUnit.NANOSECONDS);
+        this.bounded = timeoutNanos >= 0 || inherited != Long.MAX_VALUE;
+        this.deadline = now + (timeoutNanos >= 0 ? Math.min(timeoutNanos, inherited) : inherited);
+
+        if (parent instanceof AsyncScope) {
+            ((AsyncScope) parent).join(promise);
+        }
+
+        if (timeoutNanos >= 0 && timeoutNanos < inherited) {
+            final TimeoutScheduler.Timeout timer = scheduleRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    cancel(new TimeoutException("Scope deadline has been exceeded"));
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+
+            promise.attachTerminalCallback(new Callback<PromiseEvent<?>>() {
+                @Override
+                public void handle(PromiseEvent<?> message) {
+                    timer.cancel();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return time left till scope deadline (zero if expired), {@code Long.MAX_VALUE} for scope
+     *         without deadline
+     */
+    @Override
+    public long getRemaining(TimeUnit unit) {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+
+        return unit.convert(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers promise as a child of this scope. Promise joined to cancelled scope is cancelled
+     * immediately.
+     *
+     * @throws IllegalStateException if scope has already been resolved
+     */
+    public <P extends Promise<?>> P join(P child) {
+        if (child == null) {
+            throw new NullPointerException("Promise can't be null");
+        }
+
+        int count;
+        do {
+            count = pending;
+            if (count == 0) {
+                final Child current = head;
+                if (current instanceof Cancelled) {
+                    child.cancel(((Cancelled) current).reason);
+                    return child;
+                }
+
+                throw new IllegalStateException("Scope has already been completed");
+            }
+        } while (!PENDING.compareAndSet(this, count, count + 1));
+
+        final Child node = new Child(child);
+        Child current;
+        do {
+            current = head;
+            if (current instanceof Cancelled) {
+                child.cancel(((Cancelled) current).reason);
+                break;
+            }
+
+            node.next = current;
+        } while (!HEAD.compareAndSet(this, current, node));
+
+        AsyncUtils.onTerminal(child, release);
+
+        return child;
+    }
+
+    /**
+     * Closes scope for completion: scope promise is resolved as soon as all children have finished.
+     * Children can still be joined until then (e.g. by running child tasks).
+     */
+    public Promise<Void> close() {
+        if (CLOSED.compareAndSet(this, 0, 1)) {
+            release();
+        }
+
+        return promise;
+    }
+
+    /**
+     * Cancels all pending children (nested scopes included) and closes the scope.
+     *
+     * @return false if scope has already been cancelled
+     */
+    public boolean cancel(Object reason) {
+        final Cancelled cancelled = new Cancelled(reason);
+        Child current;
+        do {
+            current = head;
+            if (current instanceof Cancelled) {
+                return false;
+            }
+        } while (!HEAD.compareAndSet(this, current, cancelled));
+
+        for (Child node = current; node != null; node = node.next) {
+            node.promise.cancel(reason);
+        }
+
+        close();
+
+        return true;
+    }
+
+    public boolean cancel() {
+        return cancel(null);
+    }
+
+    public boolean isCancelled() {
+        return head instanceof Cancelled;
+    }
+
+    public Promise<Void> getPromise() {
+        return promise;
+    }
+
+    public AsyncContext getParent() {
+        return parent;
+    }
+
+    @Override
+    public <T> Deferred<T> deferred() {
+        return join(super.deferred());
+    }
+
+    // events are created by parent context, so its customizations (e.g. object pools) are kept
+
+    @Override
+    public <T extends PromiseEvent> T event(Class<T> reasonType) {
+        return parent.event(reasonType);
+    }
+
+    @Override
+    public <T> SuccessEvent<T> successEvent(T data) {
+        return parent.successEvent(data);
+    }
+
+    @Override
+    public FailEvent failEvent(Object data) {
+        return parent.failEvent(data);
+    }
+
+    @Override
+    public CancelEvent cancelEvent(Object data) {
+        return parent.cancelEvent(data);
+    }
+
+    @Override
+    public UpdateEvent<Object> updateEvent(Object data) {
+        return parent.updateEvent(data);
+    }
+
+    private void release() {
+        if (PENDING.decrementAndGet(this) != 0) {
+            return;
+        }
+
+        final Child current = head;
+        if (current instanceof Cancelled) {
+            promise.finish(cancelEvent(((Cancelled) current).reason));
+        } else {
+            promise.finish(successEvent(null));
+        }
+    }
+
+    /**
+     * Unlinks finished children as FutureTask unlinks waiters. Link of unlinked node is kept, so
+     * cancellation walking the stack concurrently still reaches the rest of it, and racing
+     * compactions can only leave some finished nodes linked till the next pass.
+     */
+    private void compact() {
+        Child pred = null;
+        Child node = head;
+        while (node != null && !(node instanceof Cancelled)) {
+            final Child next = node.next;
+            if (!node.promise.isDone()) {
+                pred = node;
+            } else if (pred != null) {
+                pred.next = next;
+            } else if (!HEAD.compareAndSet(this, node, next)) {
+                node = head; // children have been pushed on top, start over
+                continue;
+            }
+
+            node = next;
+        }
+    }
+
+    private static AsyncContext contextOrDefault(AsyncContext context) {
+        return context == null ? AsyncUtils.defaultContext() : context;
+    }
+
+    private static class Child {
+        final Promise<?> promise;
+        Child next;
+
+        Child(Promise<?> promise) {
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * Stack head of cancelled scope.
+     */
+    private static final class Cancelled extends Child {
+        final Object reason;
+
+        Cancelled(Object reason) {
+            super(null);
+            this.reason = reason;
+        }
+    }
+
+    private static final class ScopePromise extends PromiseImpl<Void> {
+        private final AsyncScope scope;
+
+        ScopePromise(AsyncScope scope) {
+            super(scope.parent);
+            this.scope = scope;
+        }
+
+        @Override
+        public boolean cancel(Object data) {
+            return !isDone() && scope.cancel(data);
+        }
+
+        void finish(PromiseEvent<?> event) {
+            triggerEventAndStopProcessing(event);
+        }
+    }
+}
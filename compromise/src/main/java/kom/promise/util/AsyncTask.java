@@ -17,12 +17,12 @@
 package kom.promise.util;
 
 import kom.promise.events.CancelEvent;
-import kom.promise.events.FailEvent;
-import kom.promise.events.SuccessEvent;
 import kom.promise.events.UpdateEvent;
 import kom.promise.impl.PromiseImpl;
 import kom.util.callback.Callback;
 
+import java.util.concurrent.TimeUnit;
+
 @SuppressWarnings("UnusedDeclaration")
 public abstract class AsyncTask<T> extends PromiseImpl<T> implements Callback<CancelEvent>, Runnable {
 
@@ -30,24 +30,52 @@ public abstract class AsyncTask<T> extends PromiseImpl<T> implements Callback<Ca
         onCancel(this);
     }
 
+    public AsyncTask(AsyncContext context) {
+        super(context);
+        onCancel(this);
+    }
+
+    /**
+     * Task created with {@link AsyncScope} as context becomes child of that scope when started, so
+     * the task is fully constructed before scope can cancel it. Task started in cancelled scope is
+     * cancelled instead of being submitted.
+     */
     public final AsyncTask<T> start() {
-        context().executeRunnable(this);
+        final AsyncContext context = context();
+        if (context instanceof AsyncScope) {
+            ((AsyncScope) context).join(this);
+            if (isDone()) {
+                return this;
+            }
+        }
+
+        context.executeRunnable(this);
 
         return this;
     }
 
     protected final void resolve(T data) {
-        triggerEventAndStopProcessing(SuccessEvent.class, data);
+        triggerEventAndStopProcessing(context().successEvent(data));
     }
 
     protected final void reject(Object data) {
-        triggerEventAndStopProcessing(FailEvent.class, data);
+        triggerEventAndStopProcessing(context().failEvent(data));
     }
 
     protected final void update(Object data) {
         triggerEvent(UpdateEvent.class, data);
     }
 
+    /**
+     * Budget left till deadline of the task context, long running tasks should check it and
+     * stop work which can't be finished in time.
+     *
+     * @return {@code Long.MAX_VALUE} if context has no deadline
+     */
+    protected final long getRemaining(TimeUnit unit) {
+        return context().getRemaining(unit);
+    }
+
     @Override
     public void handle(CancelEvent message) {
         // virtual
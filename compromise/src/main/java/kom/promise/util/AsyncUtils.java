@@ -19,17 +19,28 @@ package kom.promise.util;
 import kom.promise.Deferred;
 import kom.promise.Promise;
 import kom.promise.events.CancelEvent;
-import kom.promise.events.FailEvent;
 import kom.promise.events.PromiseEvent;
-import kom.promise.events.SuccessEvent;
+import kom.promise.events.UpdateEvent;
+import kom.promise.impl.InlineExecutor;
+import kom.promise.impl.PromiseImpl;
 import kom.util.callback.Callback;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static java.util.Arrays.asList;
 
@@ -53,38 +64,116 @@ public final class AsyncUtils {
             @Override
             public void handle(CancelEvent message) {
                 if (message.getData() instanceof Boolean) {
-                    future.cancel((Boolean)message.getData());    
+                    future.cancel((Boolean)message.getData());
                 } else {
                     future.cancel(false);
-                }                
+                }
             }
         });
-        
-        context.executeRunnable(new Runnable() {
+
+        if (future.isDone()) {
+            FuturePoller.complete(future, deferred);
+        } else if (future instanceof CompletionStage) {
+            ((CompletionStage<T>) future).whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T result, Throwable throwable) {
+                    FuturePoller.complete(future, deferred);
+                }
+            });
+        } else {
+            FuturePoller.getInstance().register(context, future, deferred);
+        }
+
+        return deferred.getPromise();
+    }
+
+
+    public static <T> Promise<T> wrap(Callable<T> callable) {
+        return wrap(null, callable);
+    }
+
+    public static <T> Promise<T> wrap(AsyncContext context, final Callable<T> callable) {
+        if (context == null) {
+            context = defaultContext();
+        }
+
+        final Deferred<T> deferred = context.deferred();
+
+        final Future<?> future = context.getRunnableExecutor().submit(new Runnable() {
             @Override
             public void run() {
+                if (deferred.isDone()) {
+                    return;
+                }
+
                 try {
-                    deferred.resolve(future.get());
-                } catch (Exception e) {
-                    deferred.reject(e);
+                    deferred.resolve(callable.call());
+                } catch (Throwable e) { // error must not leave deferred pending
+                    if (!deferred.isDone()) {
+                        deferred.reject(new ExecutionException(e));
+                    }
                 }
             }
         });
 
+        deferred.onCancel(new Callback<CancelEvent>() {
+            @Override
+            public void handle(CancelEvent message) {
+                future.cancel(Boolean.TRUE.equals(message.getData()));
+            }
+        });
+
         return deferred.getPromise();
     }
 
-
-    public static <T> Promise<T> wrap(Callable<T> callable) {
-        return wrap(null, callable);
+    public static <T> Promise<T> fromStage(CompletionStage<T> stage) {
+        return fromStage(null, stage);
     }
 
-    public static <T> Promise<T> wrap(AsyncContext context, final Callable<T> callable) {
+    /**
+     * Completes promise directly from stage completion (no executor hop), cancellation
+     * of the promise is propagated to the stage.
+     */
+    public static <T> Promise<T> fromStage(AsyncContext context, final CompletionStage<T> stage) {
         if (context == null) {
             context = defaultContext();
         }
 
-        return wrap(context, context.getRunnableExecutor().submit(callable));
+        final Deferred<T> deferred = context.deferred();
+
+        deferred.onCancel(new Callback<CancelEvent>() {
+            @Override
+            public void handle(CancelEvent message) {
+                try {
+                    stage.toCompletableFuture().cancel(Boolean.TRUE.equals(message.getData()));
+                } catch (UnsupportedOperationException e) {
+                    // stage can't be cancelled
+                }
+            }
+        });
+
+        stage.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable throwable) {
+                if (deferred.isDone()) {
+                    return;
+                }
+
+                if (throwable instanceof CompletionException && throwable.getCause() != null) {
+                    throwable = throwable.getCause();
+                }
+
+                if (throwable == null) {
+                    deferred.resolve(result);
+                } else if (throwable instanceof CancellationException) {
+                    deferred.cancel(throwable);
+                } else {
+                    deferred.reject(throwable);
+                }
+            }
+        });
+
+        return deferred.getPromise();
     }
 
     public static Promise<List<AsyncTask>> chain(AsyncTask... tasks) {
@@ -106,40 +195,88 @@ public final class AsyncUtils {
 
         final Deferred<List<AsyncTask>> deferred = context.deferred();
 
-        context.executeRunnable(new Runnable() {
-            private AtomicBoolean isCancelled = new AtomicBoolean(false);
-            private AtomicReference<AsyncTask> currentTask = new AtomicReference<AsyncTask>();
+        new TaskChain(deferred, tasks).next();
 
-            @Override
-            public void run() {
-                deferred.onCancel(new Callback<CancelEvent>() {
-                    @Override
-                    public void handle(CancelEvent message) {
-                        isCancelled.set(true);
-                        currentTask.get().cancel(message);
-                    }
-                });
+        return deferred.getPromise();
+    }
 
-                for (final AsyncTask task : tasks) {
-                    currentTask.set(task);
+    /**
+     * Each task is started from completion of the previous one. Tasks completing synchronously
+     * don't recurse: completion arriving while {@link #next()} runs is only counted and the running
+     * call starts the following task, so stack depth doesn't grow with chain length.
+     */
+    private static class TaskChain implements Callback<PromiseEvent> {
+        private static final AtomicIntegerFieldUpdater<TaskChain> WIP
+                = AtomicIntegerFieldUpdater.newUpdater(TaskChain.class, "wip");
 
-                    task.start().await();
-                    if (!task.isSuccessed()) {
-                        deferred.reject(task);
-                    }
+        private final Deferred<List<AsyncTask>> deferred;
+        private final List<AsyncTask> tasks;
 
-                    if (isCancelled.get()) {
-                        return;
-                    }
+        private volatile AsyncTask current = null;
+        private volatile int wip = 0;
+        private int index = 0; // guarded by wip
+
+        public TaskChain(Deferred<List<AsyncTask>> deferred, List<AsyncTask> tasks) {
+            this.deferred = deferred;
+            this.tasks = tasks;
 
-                    deferred.update(task);
+            deferred.onCancel(new Callback<CancelEvent>() {
+                @Override
+                public void handle(CancelEvent message) {
+                    final AsyncTask task = current;
+                    if (task != null && !task.isDone()) {
+                        task.cancel(message);
+                    }
                 }
+            });
+        }
+
+        public void next() {
+            if (WIP.getAndIncrement(this) != 0) {
+                return;
+            }
+
+            do {
+                start();
+            } while (WIP.decrementAndGet(this) != 0);
+        }
 
+        private void start() {
+            if (index == tasks.size()) {
                 deferred.resolve(tasks);
+                return;
             }
-        });
 
-        return deferred.getPromise();
+            final AsyncTask task = tasks.get(index++);
+            current = task;
+
+            if (deferred.isDone()) { // cancelled before task was published
+                return;
+            }
+
+            task.onAny(this);
+            task.start();
+        }
+
+        @Override
+        public void handle(PromiseEvent event) {
+            if (event instanceof UpdateEvent) {
+                return;
+            }
+
+            final AsyncTask task = current;
+            if (deferred.isDone()) {
+                return;
+            }
+
+            if (!task.isSuccessed()) {
+                deferred.reject(task);
+                return;
+            }
+
+            deferred.update(task);
+            next();
+        }
     }
 
     public static Promise<List<Promise>> parallel(Promise... promises) {
@@ -155,41 +292,28 @@ public final class AsyncUtils {
     }
 
     public static Promise<List<Promise>> parallel(AsyncContext context, final List<Promise> promises) {
+        return fanIn(context, promises, toArray(promises), 1, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for all promises, progress (update with completed promise) is reported every
+     * {@code progressStep} completions and/or once per {@code progressInterval}, zero disables
+     * each of them. Resolves with unmodifiable view of the given list.
+     */
+    public static Promise<List<Promise<?>>> parallel(AsyncContext context, List<? extends Promise<?>> promises,
+                                                     int progressStep, long progressInterval, TimeUnit unit) {
+        return fanIn(context, Collections.<Promise<?>>unmodifiableList(promises), toArray(promises),
+                progressStep, progressInterval, unit);
+    }
+
+    private static <L> Promise<L> fanIn(AsyncContext context, L result, Promise<?>[] promises,
+                                        int progressStep, long progressInterval, TimeUnit unit) {
         if (context == null) {
             context = defaultContext();
         }
 
-        final AtomicInteger count = new AtomicInteger(promises.size());
-        final Deferred<List<Promise>> deferred = context.deferred();
-
-        deferred.onFail(new PromiseCanceller(promises, "One of parallel tasks was failed"))
-                .onCancel(new PromiseCanceller(promises, "One of parallel tasks (or main parallel task) was cancelled"));
-
-        for (final Promise promise : promises) {
-            promise.onSuccess(new Callback<PromiseEvent>() {
-                @Override
-                public void handle(PromiseEvent event) {
-                    if (count.decrementAndGet() == 0) {
-                        deferred.resolve(promises);
-                    } else {
-                        deferred.update(promise);
-                    }
-                }
-            })
-                    .onCancel(new Callback<CancelEvent>() {
-                        @Override
-                        public void handle(CancelEvent message) {
-                            if (!deferred.isDone())
-                                deferred.cancel(promise);
-                        }
-                    })
-                    .onFail(new Callback<FailEvent>() {
-                        @Override
-                        public void handle(FailEvent event) {
-                            deferred.reject(promise);
-                        }
-                    });
-        }
+        final Deferred<L> deferred = context.deferred();
+        new FanIn<L>(deferred, result, promises, progressStep, progressInterval, unit).start();
 
         return deferred.getPromise();
     }
@@ -212,60 +336,241 @@ public final class AsyncUtils {
         }
 
         final Deferred<Promise> deferred = context.deferred();
+        Selector.first(deferred, toArray(promises), true);
+
+        return deferred.getPromise();
+    }
 
-        final PromiseCanceller doneCanceller = new PromiseCanceller(promises, "One of earlier tasks was finished");
-        final PromiseCanceller abortCanceller = new PromiseCanceller(promises,
-                "One of earlier tasks (or main earlier promise) was cancelled");
+    public static Promise<Promise<?>> firstSuccess(Promise<?>... promises) {
+        return firstSuccess(null, asList(promises));
+    }
 
-        deferred.onFail(doneCanceller)
-                .onSuccess(doneCanceller)
-                .onCancel(abortCanceller);
+    public static Promise<Promise<?>> firstSuccess(List<? extends Promise<?>> promises) {
+        return firstSuccess(null, promises);
+    }
 
-        for (final Promise promise : promises) {
-            promise.onSuccess(new Callback<SuccessEvent>() {
-                @Override
-                public void handle(SuccessEvent event) {
-                    deferred.resolve(promise);
-                }
-            })
-                    .onFail(new Callback<FailEvent>() {
-                        @Override
-                        public void handle(FailEvent event) {
-                            deferred.reject(promise);
-                        }
-                    })
-                    .onCancel(new Callback<CancelEvent>() {
-                        @Override
-                        public void handle(CancelEvent event) {
-                            if (!deferred.isDone())
-                                deferred.cancel(promise);
-                        }
-                    });
+    /**
+     * Resolves with first successfully fulfilled promise, failures are ignored until all
+     * promises fail. Losers are cancelled.
+     */
+    public static Promise<Promise<?>> firstSuccess(AsyncContext context, List<? extends Promise<?>> promises) {
+        if (context == null) {
+            context = defaultContext();
         }
 
+        final Deferred<Promise<?>> deferred = context.deferred();
+        Selector.first(deferred, toArray(promises), false);
+
         return deferred.getPromise();
     }
 
-    private static class PromiseCanceller implements Callback {
-        private final List<Promise> promises;
-        private final String message;
+    public static Promise<List<Promise<?>>> firstN(int count, Promise<?>... promises) {
+        return firstN(null, count, asList(promises));
+    }
+
+    public static Promise<List<Promise<?>>> firstN(int count, List<? extends Promise<?>> promises) {
+        return firstN(null, count, promises);
+    }
 
-        public PromiseCanceller(List<Promise> promises, String message) {
-            this.promises = promises;
-            this.message = message;
+    /**
+     * Resolves with first {@code count} successfully fulfilled promises (in order of completion),
+     * rejects as soon as {@code count} successes become unreachable. Losers are cancelled.
+     */
+    public static Promise<List<Promise<?>>> firstN(AsyncContext context, int count,
+                                                   List<? extends Promise<?>> promises) {
+        if (context == null) {
+            context = defaultContext();
         }
 
-        @Override
-        public void handle(Object event) {
-            for (Promise promise : promises) {
-                if (!promise.isDone()) { // skip already finished,
-                    // but it still not thread safe and can try stopping finished task
-                    promise.cancel(new IllegalStateException(message));
+        final Deferred<List<Promise<?>>> deferred = context.deferred();
+        Selector.firstN(deferred, toArray(promises), count);
+
+        return deferred.getPromise();
+    }
+
+    public static Promise<List<Promise<?>>> quorum(Promise<?>... promises) {
+        return quorum(null, asList(promises));
+    }
+
+    public static Promise<List<Promise<?>>> quorum(List<? extends Promise<?>> promises) {
+        return quorum(null, promises);
+    }
+
+    /**
+     * Majority of promises must be successfully fulfilled, see {@link #firstN(AsyncContext, int, List)}.
+     */
+    public static Promise<List<Promise<?>>> quorum(AsyncContext context, List<? extends Promise<?>> promises) {
+        return firstN(context, promises.size() / 2 + 1, promises);
+    }
+
+    private static Promise<?>[] toArray(List<?> promises) {
+        return promises.toArray(new Promise<?>[promises.size()]);
+    }
+
+    public static <I, O> Promise<List<O>> mapConcurrent(Iterable<? extends I> input,
+                                                       Function<? super I, ? extends Promise<O>> function,
+                                                       int maxInFlight) {
+        return mapConcurrent(null, input, function, maxInFlight, true);
+    }
+
+    /**
+     * Maps input through async function keeping at most {@code maxInFlight} promises running,
+     * input is consumed lazily. Results are in input order if {@code ordered}, otherwise in order
+     * of completion. Rejects with reason of first failed promise and cancels running ones.
+     */
+    public static <I, O> Promise<List<O>> mapConcurrent(AsyncContext context, Iterable<? extends I> input,
+                                                       Function<? super I, ? extends Promise<O>> function,
+                                                       int maxInFlight, boolean ordered) {
+        if (context == null) {
+            context = defaultContext();
+        }
+
+        final Deferred<List<O>> deferred = context.deferred();
+        BoundedMapper.collect(deferred, input, function, maxInFlight, ordered);
+
+        return deferred.getPromise();
+    }
+
+    /**
+     * Streaming variant of {@link #mapConcurrent(AsyncContext, Iterable, Function, int, boolean)}:
+     * results are passed to consumer in order of completion and are not retained, memory stays
+     * O(maxInFlight). Resolves with count of processed items.
+     */
+    public static <I, O> Promise<Long> mapConcurrent(AsyncContext context, Iterable<? extends I> input,
+                                                    Function<? super I, ? extends Promise<O>> function,
+                                                    int maxInFlight, Consumer<? super O> consumer) {
+        if (context == null) {
+            context = defaultContext();
+        }
+
+        if (consumer == null) {
+            throw new NullPointerException("Consumer can't be null");
+        }
+
+        final Deferred<Long> deferred = context.deferred();
+        BoundedMapper.stream(deferred, input, function, maxInFlight, consumer);
+
+        return deferred.getPromise();
+    }
+
+    public static <T> Promise<T> retry(Supplier<? extends Promise<T>> supplier, RetryPolicy policy) {
+        return retry(null, supplier, policy);
+    }
+
+    /**
+     * Calls supplier until returned promise is resolved or policy gives up (result is rejected with
+     * reason of last attempt). Backoff is waited on the context timeout scheduler, cancellation of
+     * result cancels running attempt.
+     */
+    public static <T> Promise<T> retry(AsyncContext context, Supplier<? extends Promise<T>> supplier,
+                                       RetryPolicy policy) {
+        if (context == null) {
+            context = defaultContext();
+        }
+
+        return new Retrier<T>(context, supplier, policy).start();
+    }
+
+    public static <T> Promise<T> hedge(Supplier<? extends Promise<T>> supplier, long delay, TimeUnit unit) {
+        return hedge(null, supplier, delay, unit);
+    }
+
+    /**
+     * Calls supplier and, if returned promise isn't completed in {@code delay}, calls it once more.
+     * Result is resolved by the first successful attempt, the other one is cancelled.
+     */
+    public static <T> Promise<T> hedge(AsyncContext context, Supplier<? extends Promise<T>> supplier,
+                                       long delay, TimeUnit unit) {
+        if (context == null) {
+            context = defaultContext();
+        }
+
+        return new Hedger<T>(context, supplier, null).start(unit.toNanos(delay));
+    }
+
+    /**
+     * Hedge with adaptive delay: duplicate is started after observed latency percentile (e.g.
+     * {@link LatencyTracker#p95}) of successful attempts, tracker should be shared by calls of
+     * the same kind.
+     */
+    public static <T> Promise<T> hedge(AsyncContext context, Supplier<? extends Promise<T>> supplier,
+                                       LatencyTracker tracker) {
+        if (context == null) {
+            context = defaultContext();
+        }
+
+        return new Hedger<T>(context, supplier, tracker).start(tracker.getPercentile(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Blocks until all promises have been completed or timeout elapses. Waiting thread is woken up
+     * once, by the last completion (or by timeout), not by every promise.
+     *
+     * @return completed promises in collection order, all of them unless timeout has elapsed
+     */
+    public static <P extends Promise<?>> List<P> awaitAll(Collection<P> promises, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return AwaitLatch.await(promises, promises.size(), timeout, unit);
+    }
+
+    public static <P extends Promise<?>> List<P> awaitAll(Collection<P> promises) throws InterruptedException {
+        return awaitAll(promises, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Blocks until any of promises has been completed or timeout elapses.
+     *
+     * @return completed promise (first in collection order if several are completed),
+     *         {@code null} on timeout or for empty collection
+     */
+    public static <P extends Promise<?>> P awaitAny(Collection<P> promises, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final List<P> completed = AwaitLatch.await(promises, Math.min(1, promises.size()), timeout, unit);
+
+        return completed.isEmpty() ? null : completed.get(0);
+    }
+
+    public static <P extends Promise<?>> P awaitAny(Collection<P> promises) throws InterruptedException {
+        return awaitAny(promises, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Attaches callback to terminal event of promise, update events are not observed when possible.
+     */
+    @SuppressWarnings("rawtypes")
+    static void onTerminal(Promise<?> promise, final Callback<? super PromiseEvent<?>> callback) {
+        if (promise instanceof PromiseImpl) {
+            ((PromiseImpl<?>) promise).attachTerminalCallback(callback);
+        } else {
+            promise.onAny(new Callback<PromiseEvent>() { // raw as required by onAny
+                @Override
+                public void handle(PromiseEvent event) {
+                    if (!(event instanceof UpdateEvent)) {
+                        callback.handle((PromiseEvent<?>) event);
+                    }
                 }
-            }
+            });
         }
     }
 
+    /**
+     * Detaches callback attached by {@link #onTerminal}, so pending promise doesn't keep it.
+     * Wrapper used for foreign promises can't be detached, it stays till promise completes.
+     */
+    static void detachTerminal(Promise<?> promise, Callback<? super PromiseEvent<?>> callback) {
+        if (promise instanceof PromiseImpl) {
+            ((PromiseImpl<?>) promise).detachCallback(callback);
+        }
+    }
+
+    /**
+     * Executor for callbacks which must run on completing thread, see {@link Promise#onAny(Callback, Executor)}.
+     * Callbacks completing other promises are queued instead of recursion.
+     */
+    public static Executor inlineExecutor() {
+        return InlineExecutor.getInstance();
+    }
+
     public static AsyncContext defaultContext() {
         return AsyncContextHolder.HOLDER_INSTANCE;
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Promise;
+import kom.promise.events.PromiseEvent;
+import kom.promise.impl.InlineExecutor;
+import kom.util.callback.Callback;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Engine of {@link AsyncUtils#awaitAll} and {@link AsyncUtils#awaitAny}: one countdown shared by
+ * all awaited promises. Completions count down directly from their terminal callbacks and only
+ * the last required one unparks the waiting thread, so waiter wakes up once instead of once
+ * per promise.
+ */
+final class AwaitLatch implements Callback<PromiseEvent<?>> {
+    private final AtomicInteger remaining;
+    private final Thread waiter = Thread.currentThread();
+
+    private AwaitLatch(int count) {
+        this.remaining = new AtomicInteger(count);
+    }
+
+    @Override
+    public void handle(PromiseEvent<?> message) {
+        if (remaining.decrementAndGet() == 0) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Waits until {@code required} promises have been completed or timeout elapses.
+     *
+     * @return completed promises in collection order
+     */
+    static <P extends Promise<?>> List<P> await(Collection<P> promises, int required, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (unit == null) {
+            throw new NullPointerException("Unit can't be null");
+        }
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        final AwaitLatch latch = new AwaitLatch(required);
+        int attached = 0;
+        try {
+            for (P promise : promises) {
+                if (latch.remaining.get() <= 0) {
+                    break;
+                }
+
+                // callback of already completed promise is executed immediately
+                AsyncUtils.onTerminal(promise, latch);
+                ++attached;
+            }
+
+            InlineExecutor.runPending(); // completions may be queued on this very thread
+            latch.park(unit.toNanos(timeout));
+        } finally {
+            // promises still pending must not keep the latch (and waiting thread) reachable
+            for (P promise : promises) {
+                if (attached-- == 0) {
+                    break;
+                }
+
+                if (!promise.isDone()) {
+                    AsyncUtils.detachTerminal(promise, latch);
+                }
+            }
+        }
+
+        final List<P> result = new ArrayList<P>(required);
+        for (P promise : promises) {
+            if (promise.isDone()) {
+                result.add(promise);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Parks until countdown is reached, callbacks arriving after that make counter negative
+     * and are ignored.
+     */
+    private void park(long nanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + nanos;
+        while (remaining.get() > 0) {
+            if (nanos <= 0) {
+                return;
+            }
+
+            LockSupport.parkNanos(this, nanos);
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            nanos = deadline - System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.util.callback.Callback;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Engine of {@link AsyncUtils#mapConcurrent}: pulls input lazily and keeps at most
+ * {@code maxInFlight} promises running.
+ *
+ * Input iterator is accessed by one thread at a time (work-in-progress counter instead of lock),
+ * next item is started when completion frees a slot. In streaming mode (with consumer) results
+ * are not retained and memory stays O(maxInFlight).
+ */
+final class BoundedMapper<I, O> {
+    private final Deferred<?> deferred;
+    private final Deferred<? super List<O>> collected; // collecting mode
+    private final Deferred<? super Long> streamed;     // streaming mode (with consumer)
+    private final Iterator<? extends I> input;
+    private final Function<? super I, ? extends Promise<O>> function;
+    private final int maxInFlight;
+    private final boolean ordered;
+    private final Consumer<? super O> consumer;
+
+    private final Set<Promise<O>> running = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger wip = new AtomicInteger(0);
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final AtomicLong completed = new AtomicLong(0);
+
+    private final List<Member> members;                  // ordered mode only
+    private final ConcurrentLinkedQueue<O> unordered;    // unordered mode only
+    private boolean exhausted = false;
+
+    private BoundedMapper(Deferred<?> deferred, Deferred<? super List<O>> collected, Deferred<? super Long> streamed,
+                          Iterable<? extends I> input, Function<? super I, ? extends Promise<O>> function,
+                          int maxInFlight, boolean ordered, Consumer<? super O> consumer) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Max in flight count must be positive: " + maxInFlight);
+        }
+
+        this.deferred = deferred;
+        this.collected = collected;
+        this.streamed = streamed;
+        this.input = input.iterator();
+        this.function = function;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+        this.consumer = consumer;
+        this.members = consumer == null && ordered ? new ArrayList<Member>() : null;
+        this.unordered = consumer == null && !ordered ? new ConcurrentLinkedQueue<O>() : null;
+    }
+
+    /**
+     * Resolves deferred with list of results.
+     */
+    static <I, O> void collect(Deferred<? super List<O>> deferred, Iterable<? extends I> input,
+                               Function<? super I, ? extends Promise<O>> function, int maxInFlight, boolean ordered) {
+        new BoundedMapper<I, O>(deferred, deferred, null, input, function, maxInFlight, ordered, null).start();
+    }
+
+    /**
+     * Passes results to consumer, resolves deferred with count of processed items.
+     */
+    static <I, O> void stream(Deferred<? super Long> deferred, Iterable<? extends I> input,
+                              Function<? super I, ? extends Promise<O>> function, int maxInFlight,
+                              Consumer<? super O> consumer) {
+        new BoundedMapper<I, O>(deferred, null, deferred, input, function, maxInFlight, false, consumer).start();
+    }
+
+    private void start() {
+        deferred.onCancel(new Callback<CancelEvent>() {
+            @Override
+            public void handle(CancelEvent message) {
+                finished.set(true);
+                cancelRunning(message.getData());
+            }
+        });
+
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        do {
+            while (!finished.get() && inFlight.get() < maxInFlight && !exhausted) {
+                if (!input.hasNext()) {
+                    exhausted = true;
+                    break;
+                }
+
+                startNext();
+            }
+
+            if (exhausted && inFlight.get() == 0 && finish()) {
+                resolve();
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    private void startNext() {
+        final Promise<O> promise;
+        try {
+            promise = function.apply(input.next());
+            if (promise == null) {
+                throw new NullPointerException("Function returned null promise");
+            }
+        } catch (Exception e) {
+            if (finish()) {
+                deferred.reject(e);
+                cancelRunning(e);
+            }
+
+            return;
+        }
+
+        final Member member = new Member(promise);
+        if (members != null) {
+            members.add(member);
+        }
+
+        inFlight.incrementAndGet();
+        running.add(promise);
+        AsyncUtils.onTerminal(promise, member);
+    }
+
+    private void completed(Member member, PromiseEvent<?> event) {
+        running.remove(member.promise);
+
+        if (event instanceof SuccessEvent) {
+            @SuppressWarnings("unchecked")
+            final O data = ((SuccessEvent<O>) event).getData();
+
+            if (consumer != null) {
+                if (!finished.get()) {
+                    accept(data);
+                }
+            } else if (unordered != null) {
+                unordered.add(data);
+            } else {
+                member.result = data;
+            }
+
+            completed.incrementAndGet();
+        } else if (finish()) {
+            if (event instanceof CancelEvent) {
+                deferred.cancel(event.getData());
+            } else {
+                deferred.reject(event.getData());
+            }
+
+            cancelRunning(event.getData());
+        }
+
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void accept(O data) {
+        try {
+            consumer.accept(data);
+        } catch (RuntimeException e) {
+            if (finish()) {
+                deferred.reject(e);
+                cancelRunning(e);
+            }
+        }
+    }
+
+    private void resolve() {
+        if (streamed != null) {
+            streamed.resolve(completed.get());
+            return;
+        }
+
+        if (unordered != null) {
+            collected.resolve(new ArrayList<O>(unordered));
+            return;
+        }
+
+        final List<O> result = new ArrayList<O>(members.size());
+        for (Member member : members) {
+            result.add(member.result);
+        }
+
+        collected.resolve(result);
+    }
+
+    private boolean finish() {
+        return !finished.get() && finished.compareAndSet(false, true);
+    }
+
+    private void cancelRunning(Object reason) {
+        for (Promise<O> promise : running) {
+            if (running.remove(promise)) {
+                promise.cancel(reason);
+            }
+        }
+    }
+
+    private class Member implements Callback<PromiseEvent<?>> {
+        private final Promise<O> promise;
+        private O result;
+
+        Member(Promise<O> promise) {
+            this.promise = promise;
+        }
+
+        @Override
+        public void handle(PromiseEvent<?> event) {
+            completed(this, event);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.util.callback.Callback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fan-in aggregator for {@link AsyncUtils#parallel}.
+ *
+ * Completion is tracked by a counter, every input gets one small terminal-only listener. Inputs
+ * are removed from the pending slots as they complete, so cancellation sweep cancels only
+ * inputs which are still pending. Progress is reported every {@code progressStep} completions
+ * and/or not more often than once per {@code progressInterval}, update data is the completed input
+ * which triggered report.
+ */
+final class FanIn<L> {
+    private final Deferred<L> deferred;
+    private final L result; // list of inputs
+    private final Promise<?>[] promises;
+    private final AtomicReferenceArray<Promise<?>> pending;
+    private final AtomicInteger remaining;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private final int progressStep;
+    private final long progressInterval;
+    private volatile long lastProgress;
+
+    FanIn(Deferred<L> deferred, L result, Promise<?>[] promises, int progressStep, long progressInterval,
+          TimeUnit unit) {
+        this.deferred = deferred;
+        this.result = result;
+        this.promises = promises;
+        this.pending = new AtomicReferenceArray<Promise<?>>(promises);
+        this.remaining = new AtomicInteger(promises.length);
+        this.progressStep = progressStep;
+        this.progressInterval = unit.toNanos(progressInterval);
+        this.lastProgress = System.nanoTime();
+    }
+
+    void start() {
+        final int size = promises.length;
+        if (size == 0) {
+            deferred.resolve(result);
+            return;
+        }
+
+        deferred.onCancel(new Callback<CancelEvent>() {
+            @Override
+            public void handle(CancelEvent message) {
+                finish();
+                cancelPending("One of parallel tasks (or main parallel task) was cancelled");
+            }
+        });
+
+        for (int i = 0; i < size && !deferred.isDone(); ++i) {
+            AsyncUtils.onTerminal(promises[i], new Member(i));
+        }
+    }
+
+    private void completed(int index, PromiseEvent<?> event) {
+        final Promise<?> promise = pending.getAndSet(index, null);
+        if (promise == null || finished.get()) {
+            return;
+        }
+
+        if (event instanceof SuccessEvent) {
+            final int left = remaining.decrementAndGet();
+
+            if (left == 0) {
+                if (finish()) {
+                    deferred.resolve(result);
+                }
+            } else {
+                reportProgress(promise, promises.length - left);
+            }
+        } else if (finish()) {
+            if (event instanceof CancelEvent) {
+                deferred.cancel(promise);
+            } else {
+                deferred.reject(promise);
+                cancelPending("One of parallel tasks was failed");
+            }
+        }
+    }
+
+    private void reportProgress(Promise<?> promise, int completed) {
+        boolean report = progressStep > 0 && completed % progressStep == 0;
+
+        if (progressInterval > 0) {
+            final long now = System.nanoTime();
+            final long last = lastProgress;
+
+            if (now - last >= progressInterval) {
+                lastProgress = now;
+                report = true;
+            }
+        }
+
+        if (report && !finished.get()) {
+            deferred.update(promise);
+        }
+    }
+
+    private boolean finish() {
+        return !finished.get() && finished.compareAndSet(false, true);
+    }
+
+    private void cancelPending(String message) {
+        IllegalStateException reason = null;
+
+        for (int i = 0, size = pending.length(); i < size; ++i) {
+            final Promise<?> promise = pending.getAndSet(i, null);
+
+            if (promise != null) {
+                if (reason == null) {
+                    reason = new IllegalStateException(message);
+                }
+
+                promise.cancel(reason);
+            }
+        }
+    }
+
+    private class Member implements Callback<PromiseEvent<?>> {
+        private final int index;
+
+        Member(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void handle(PromiseEvent<?> event) {
+            completed(index, event);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Completes deferreds of plain {@link Future}s which have no completion hook. One daemon thread
+ * polls all registered futures, pause between sweeps grows while nothing completes and resets
+ * on first completion or new registration. Completions are handed to the context runnable
+ * executor, so callbacks never run on (and never stall) the polling thread.
+ */
+final class FuturePoller implements Runnable {
+    private static final long MIN_PAUSE = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_PAUSE = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ConcurrentLinkedQueue<Entry<?>> incoming = new ConcurrentLinkedQueue<Entry<?>>();
+    private final ArrayList<Entry<?>> polled = new ArrayList<Entry<?>>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private volatile Thread worker = null;
+
+    public <T> void register(AsyncContext context, Future<T> future, Deferred<T> deferred) {
+        incoming.add(new Entry<T>(context, future, deferred));
+
+        if (!started.get() && started.compareAndSet(false, true)) {
+            final Thread thread = new Thread(this, "compromise-future-poller");
+            thread.setDaemon(true);
+            worker = thread;
+            thread.start();
+        } else {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    @Override
+    public void run() {
+        long pause = MIN_PAUSE;
+
+        while (true) {
+            boolean progress = false;
+
+            Entry<?> entry;
+            while ((entry = incoming.poll()) != null) {
+                polled.add(entry);
+                progress = true;
+            }
+
+            for (int i = polled.size() - 1; i >= 0; --i) {
+                entry = polled.get(i);
+
+                if (entry.deferred.isDone() || entry.future.isDone()) {
+                    if (!entry.deferred.isDone()) {
+                        entry.complete();
+                    }
+
+                    // swap remove, order of polling doesn't matter
+                    polled.set(i, polled.get(polled.size() - 1));
+                    polled.remove(polled.size() - 1);
+                    progress = true;
+                }
+            }
+
+            if (polled.isEmpty() && incoming.isEmpty()) {
+                pause = MIN_PAUSE;
+                LockSupport.park(this);
+            } else if (progress) {
+                pause = MIN_PAUSE;
+            } else {
+                LockSupport.parkNanos(this, pause);
+                pause = Math.min(pause << 1, MAX_PAUSE);
+            }
+        }
+    }
+
+    /**
+     * Transfers result of completed future to deferred.
+     */
+    static <T> void complete(Future<T> future, Deferred<T> deferred) {
+        if (deferred.isDone()) {
+            return;
+        }
+
+        try {
+            deferred.resolve(future.get());
+        } catch (CancellationException e) {
+            deferred.cancel(e);
+        } catch (Exception e) {
+            deferred.reject(e);
+        }
+    }
+
+    public static FuturePoller getInstance() {
+        return SingletonHolder.HOLDER_INSTANCE;
+    }
+
+    private static class Entry<T> implements Runnable {
+        private final AsyncContext context;
+        private final Future<T> future;
+        private final Deferred<T> deferred;
+
+        public Entry(AsyncContext context, Future<T> future, Deferred<T> deferred) {
+            this.context = context;
+            this.future = future;
+            this.deferred = deferred;
+        }
+
+        void complete() {
+            try {
+                context.executeRunnable(this);
+            } catch (RuntimeException e) { // e.g. rejected by executor which is shutting down
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            FuturePoller.complete(future, deferred);
+        }
+    }
+
+    private static class SingletonHolder {
+        public static final FuturePoller HOLDER_INSTANCE = new FuturePoller();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed wheel timer: O(1) schedule and cancel, expiration precision is one tick.
+ *
+ * Scheduling and cancellation only push entry to a lock-free stack, worker thread moves new
+ * entries to wheel buckets and unlinks cancelled ones on every tick, so cancelled timeouts
+ * are not retained longer than one tick. Tasks are executed on the worker thread and must be short.
+ */
+public class HashedWheelScheduler implements TimeoutScheduler {
+    private static final Logger log = Logger.getLogger(HashedWheelScheduler.class.getName());
+
+    private static final int WORKER_INIT = 0;
+    private static final int WORKER_STARTED = 1;
+    private static final int WORKER_STOPPED = 2;
+
+    private static final AtomicIntegerFieldUpdater<HashedWheelScheduler> WORKER_STATE
+            = AtomicIntegerFieldUpdater.newUpdater(HashedWheelScheduler.class, "workerState");
+
+    private static final AtomicReferenceFieldUpdater<HashedWheelScheduler, WheelTimeout> INCOMING
+            = AtomicReferenceFieldUpdater.newUpdater(HashedWheelScheduler.class, WheelTimeout.class, "incoming");
+
+    private static final AtomicReferenceFieldUpdater<HashedWheelScheduler, WheelTimeout> CANCELLED
+            = AtomicReferenceFieldUpdater.newUpdater(HashedWheelScheduler.class, WheelTimeout.class, "cancelled");
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Thread worker;
+
+    private volatile int workerState = WORKER_INIT;
+    private volatile long startTime = 0;
+    private volatile WheelTimeout incoming = null;
+    private volatile WheelTimeout cancelled = null;
+
+    public HashedWheelScheduler() {
+        this(10, TimeUnit.MILLISECONDS, 1024);
+    }
+
+    public HashedWheelScheduler(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (unit == null) {
+            throw new NullPointerException("Unit can't be null");
+        }
+
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+        }
+
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("Ticks per wheel must be in (0, 2^30]: " + ticksPerWheel);
+        }
+
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; ++i) {
+            wheel[i] = new Bucket();
+        }
+
+        this.worker = new Thread(new Worker(), "compromise-timeout-wheel");
+        this.worker.setDaemon(true);
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("Task can't be null");
+        }
+
+        if (unit == null) {
+            throw new NullPointerException("Unit can't be null");
+        }
+
+        start();
+
+        final WheelTimeout timeout = new WheelTimeout(this, task,
+                System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0));
+
+        WheelTimeout head;
+        do {
+            head = incoming;
+            timeout.next = head;
+        } while (!INCOMING.compareAndSet(this, head, timeout));
+
+        return timeout;
+    }
+
+    /**
+     * Stops worker thread, not expired timeouts are never executed.
+     */
+    public void stop() {
+        if (WORKER_STATE.getAndSet(this, WORKER_STOPPED) == WORKER_STARTED) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void start() {
+        if (workerState == WORKER_INIT && WORKER_STATE.compareAndSet(this, WORKER_INIT, WORKER_STARTED)) {
+            startTime = System.nanoTime();
+            worker.start();
+        } else if (workerState == WORKER_STOPPED) {
+            throw new IllegalStateException("Scheduler has already been stopped");
+        }
+
+        while (startTime == 0) {
+            Thread.yield(); // worker is starting by other thread
+        }
+    }
+
+    private void pushCancelled(WheelTimeout timeout) {
+        WheelTimeout head;
+        do {
+            head = cancelled;
+            timeout.nextCancelled = head;
+        } while (!CANCELLED.compareAndSet(this, head, timeout));
+    }
+
+    private final class Worker implements Runnable {
+        private long tick = 0;
+
+        @Override
+        public void run() {
+            while (workerState == WORKER_STARTED) {
+                final long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    break;
+                }
+
+                removeCancelled();
+                transferIncoming();
+                wheel[(int) (tick & mask)].expire(deadline);
+                ++tick;
+            }
+        }
+
+        private long waitForNextTick() {
+            final long deadline = tickNanos * (tick + 1);
+
+            while (workerState == WORKER_STARTED) {
+                final long current = System.nanoTime() - startTime;
+                if (current >= deadline) {
+                    return current;
+                }
+
+                LockSupport.parkNanos(HashedWheelScheduler.this, deadline - current);
+            }
+
+            return -1;
+        }
+
+        private void removeCancelled() {
+            WheelTimeout timeout = CANCELLED.getAndSet(HashedWheelScheduler.this, null);
+            while (timeout != null) {
+                final WheelTimeout next = timeout.nextCancelled;
+                timeout.nextCancelled = null;
+
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+
+                timeout = next;
+            }
+        }
+
+        private void transferIncoming() {
+            WheelTimeout timeout = INCOMING.getAndSet(HashedWheelScheduler.this, null);
+            while (timeout != null) {
+                final WheelTimeout next = timeout.next;
+                timeout.next = null;
+
+                if (timeout.state == WheelTimeout.ST_INIT) {
+                    final long calculated = timeout.deadline / tickNanos;
+                    timeout.remainingRounds = (calculated - tick) / wheel.length;
+                    wheel[(int) (Math.max(calculated, tick) & mask)].add(timeout);
+
+                    if (timeout.state != WheelTimeout.ST_INIT) {
+                        timeout.bucket.remove(timeout); // cancelled during transfer
+                    }
+                }
+
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Doubly-linked list of timeouts, accessed by worker thread only.
+     */
+    private static final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            final WheelTimeout next = timeout.next;
+
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+
+            if (timeout == head) {
+                head = next;
+            }
+
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire(long deadline) {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                final WheelTimeout next = timeout.next;
+
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    }
+                } else if (timeout.state != WheelTimeout.ST_INIT) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+    }
+
+    private static final class WheelTimeout implements Timeout {
+        static final int ST_INIT = 0;
+        static final int ST_CANCELLED = 1;
+        static final int ST_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE
+                = AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+        private final HashedWheelScheduler scheduler;
+        private final long deadline;
+        private Runnable task;
+
+        volatile int state = ST_INIT;
+        long remainingRounds;
+
+        WheelTimeout next;
+        WheelTimeout prev;
+        WheelTimeout nextCancelled;
+        Bucket bucket;
+
+        WheelTimeout(HashedWheelScheduler scheduler, Runnable task, long deadline) {
+            this.scheduler = scheduler;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+
+            task = null;
+            scheduler.pushCancelled(this);
+
+            return true;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            final Runnable task = this.task;
+            this.task = null;
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.log(Level.WARNING, "Timeout task has thrown an exception", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.util.callback.Callback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Engine of {@link AsyncUtils#hedge}: starts primary attempt and, if it isn't completed after
+ * hedge delay (or has failed earlier), one duplicate. First success wins and loser is cancelled,
+ * result is rejected when both attempts have failed. Duplicate is submitted to the context
+ * runnable executor, supplier never runs on the timer thread.
+ */
+final class Hedger<T> {
+    private final AsyncContext context;
+    private final Deferred<T> deferred;
+    private final Supplier<? extends Promise<T>> supplier;
+    private final LatencyTracker tracker;
+
+    private final AtomicReferenceArray<Promise<T>> attempts = new AtomicReferenceArray<Promise<T>>(2);
+    private final AtomicBoolean hedged = new AtomicBoolean(false);
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    Hedger(AsyncContext context, Supplier<? extends Promise<T>> supplier, LatencyTracker tracker) {
+        if (supplier == null) {
+            throw new NullPointerException("Supplier can't be null");
+        }
+
+        this.context = context;
+        this.deferred = context.deferred();
+        this.supplier = supplier;
+        this.tracker = tracker;
+    }
+
+    Promise<T> start(long delayNanos) {
+        final TimeoutScheduler.Timeout timeout = context.getTimeoutScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (deferred.isDone()) {
+                    return;
+                }
+
+                try {
+                    context.executeRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            hedge();
+                        }
+                    });
+                } catch (RuntimeException ignored) {
+                    // executor has been shut down, primary attempt goes on alone
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+
+        AsyncUtils.onTerminal(deferred.getPromise(), new Callback<PromiseEvent<?>>() {
+            @Override
+            public void handle(PromiseEvent<?> message) {
+                timeout.cancel();
+
+                for (int i = 0; i < attempts.length(); ++i) {
+                    final Promise<T> attempt = attempts.getAndSet(i, null);
+                    if (attempt != null) {
+                        attempt.cancel(message.getData());
+                    }
+                }
+            }
+        });
+
+        launch(0);
+
+        return deferred.getPromise();
+    }
+
+    private void hedge() {
+        if (!deferred.isDone() && !hedged.get() && hedged.compareAndSet(false, true)) {
+            launch(1);
+        }
+    }
+
+    private void launch(final int index) {
+        final long started = System.nanoTime();
+
+        final Promise<T> attempt;
+        try {
+            attempt = supplier.get();
+            if (attempt == null) {
+                throw new NullPointerException("Supplier has returned null promise");
+            }
+        } catch (RuntimeException e) {
+            failed(e);
+            return;
+        }
+
+        attempts.set(index, attempt);
+        if (deferred.isDone()) { // completion could miss just stored attempt
+            attempt.cancel();
+        }
+
+        AsyncUtils.onTerminal(attempt, new Callback<PromiseEvent<?>>() {
+            @Override
+            public void handle(PromiseEvent<?> event) {
+                attempts.compareAndSet(index, attempt, null);
+
+                if (deferred.isDone()) {
+                    return;
+                }
+
+                if (event instanceof SuccessEvent) {
+                    if (tracker != null) {
+                        tracker.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                    }
+
+                    if (finished.compareAndSet(false, true)) {
+                        @SuppressWarnings("unchecked")
+                        final T data = ((SuccessEvent<T>) event).getData();
+                        deferred.resolve(data);
+                    }
+                } else {
+                    failed(event.getData());
+                }
+            }
+        });
+    }
+
+    private void failed(Object reason) {
+        final int count = failures.incrementAndGet();
+
+        if (!hedged.get() && hedged.compareAndSet(false, true)) {
+            launch(1); // primary has failed before hedge delay, duplicate is started at once
+        } else if (count == 2 && !deferred.isDone() && finished.compareAndSet(false, true)) {
+            deferred.reject(reason);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks percentile of latencies over a sliding window of recent samples, used as adaptive
+ * hedge delay (see {@link AsyncUtils#hedge(AsyncContext, java.util.function.Supplier, LatencyTracker)}).
+ *
+ * Samples are written to a ring without locks, percentile is recomputed lazily (at most once per
+ * {@code window / 8} new samples) and initial value is reported until window is a quarter full.
+ */
+public final class LatencyTracker {
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong(0);
+    private final double percentile;
+    private final long initialNanos;
+
+    private volatile long cachedNanos;
+    private volatile long cachedAt = 0;
+
+    public LatencyTracker(int window, double percentile, long initialValue, TimeUnit unit) {
+        if (window < 8) {
+            throw new IllegalArgumentException("Window must be at least 8 samples: " + window);
+        }
+
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be in (0, 1]: " + percentile);
+        }
+
+        this.samples = new AtomicLongArray(window);
+        this.percentile = percentile;
+        this.initialNanos = unit.toNanos(initialValue);
+        this.cachedNanos = initialNanos;
+    }
+
+    /**
+     * Tracker of 95th percentile over last 256 samples.
+     */
+    public static LatencyTracker p95(long initialValue, TimeUnit unit) {
+        return new LatencyTracker(256, 0.95, initialValue, unit);
+    }
+
+    public void record(long latency, TimeUnit unit) {
+        final long index = count.getAndIncrement();
+        samples.set((int) (index % samples.length()), unit.toNanos(latency));
+    }
+
+    public long getPercentile(TimeUnit unit) {
+        final long recorded = count.get();
+        final int window = samples.length();
+
+        if (recorded < window / 4) {
+            return unit.convert(initialNanos, TimeUnit.NANOSECONDS);
+        }
+
+        if (recorded - cachedAt >= window / 8) {
+            final int size = (int) Math.min(recorded, window);
+            final long[] sorted = new long[size];
+            for (int i = 0; i < size; ++i) {
+                sorted[i] = samples.get(i);
+            }
+
+            Arrays.sort(sorted);
+            cachedNanos = sorted[Math.min(size - 1, (int) Math.ceil(size * percentile) - 1)];
+            cachedAt = recorded;
+        }
+
+        return unit.convert(cachedNanos, TimeUnit.NANOSECONDS);
+    }
+}
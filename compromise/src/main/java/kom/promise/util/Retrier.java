@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.util.callback.Callback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Engine of {@link AsyncUtils#retry}: runs attempts one after another, backoff delay is waited on
+ * the context timeout scheduler, so no thread is blocked between attempts. Delayed attempt is
+ * submitted to the context runnable executor, supplier never runs on the timer thread.
+ *
+ * Running attempt (or scheduled timeout of next one) is kept in a single reference, completion
+ * of result promise cancels it. Retry which can't start before context deadline is not scheduled.
+ */
+final class Retrier<T> implements Callback<PromiseEvent<?>> {
+    private static final Object DONE = new Object();
+
+    private final AsyncContext context;
+    private final Deferred<T> deferred;
+    private final Supplier<? extends Promise<T>> supplier;
+    private final RetryPolicy policy;
+
+    private final AtomicReference<Object> current = new AtomicReference<Object>(null);
+    private volatile int attempts = 0; // attempts are sequential, single writer at a time
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    private final Runnable timer = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                context.executeRunnable(retry);
+            } catch (RuntimeException e) { // e.g. executor has been shut down
+                reject(e);
+            }
+        }
+    };
+
+    Retrier(AsyncContext context, Supplier<? extends Promise<T>> supplier, RetryPolicy policy) {
+        if (supplier == null || policy == null) {
+            throw new NullPointerException("Supplier and policy can't be null");
+        }
+
+        this.context = context;
+        this.deferred = context.deferred();
+        this.supplier = supplier;
+        this.policy = policy;
+    }
+
+    Promise<T> start() {
+        AsyncUtils.onTerminal(deferred.getPromise(), new Callback<PromiseEvent<?>>() {
+            @Override
+            public void handle(PromiseEvent<?> message) {
+                final Object running = current.getAndSet(DONE);
+                if (running instanceof Promise) {
+                    ((Promise<?>) running).cancel(message.getData());
+                } else if (running instanceof TimeoutScheduler.Timeout) {
+                    ((TimeoutScheduler.Timeout) running).cancel();
+                }
+            }
+        });
+
+        attempt();
+
+        return deferred.getPromise();
+    }
+
+    private void attempt() {
+        ++attempts;
+
+        final Promise<T> promise;
+        try {
+            promise = supplier.get();
+            if (promise == null) {
+                throw new NullPointerException("Supplier has returned null promise");
+            }
+        } catch (RuntimeException e) {
+            failed(e);
+            return;
+        }
+
+        if (!publish(promise)) {
+            promise.cancel();
+            return;
+        }
+
+        AsyncUtils.onTerminal(promise, this);
+    }
+
+    @Override
+    public void handle(PromiseEvent<?> event) {
+        if (deferred.isDone()) {
+            return;
+        }
+
+        if (event instanceof SuccessEvent) {
+            @SuppressWarnings("unchecked")
+            final T data = ((SuccessEvent<T>) event).getData();
+            deferred.resolve(data);
+        } else if (event instanceof CancelEvent) {
+            deferred.cancel(event.getData());
+        } else {
+            failed(event.getData());
+        }
+    }
+
+    private void failed(Object reason) {
+        if (!policy.shouldRetry(attempts, reason)) {
+            reject(reason);
+            return;
+        }
+
+        final long delay = policy.delayNanos(attempts);
+        if (delay >= context.getRemaining(TimeUnit.NANOSECONDS)) {
+            reject(reason); // next attempt would start after deadline
+            return;
+        }
+
+        final TimeoutScheduler.Timeout timeout = context.getTimeoutScheduler().schedule(timer, delay, TimeUnit.NANOSECONDS);
+
+        if (!publish(timeout)) {
+            timeout.cancel();
+        }
+    }
+
+    private void reject(Object reason) {
+        if (!deferred.isDone()) {
+            deferred.reject(reason);
+        }
+    }
+
+    /**
+     * @return false if result has already been completed
+     */
+    private boolean publish(Object running) {
+        Object previous;
+        do {
+            previous = current.get();
+            if (previous == DONE) {
+                return false;
+            }
+        } while (!current.compareAndSet(previous, running));
+
+        return true;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Retry policy of {@link AsyncUtils#retry}: attempts count, exponential backoff with jitter and
+ * predicate over reject reason. Policy is immutable, {@code with...} methods return copies.
+ */
+public final class RetryPolicy {
+    private static final Predicate<Object> ANY_REASON = new Predicate<Object>() {
+        @Override
+        public boolean test(Object reason) {
+            return true;
+        }
+    };
+
+    private final int maxAttempts;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final double multiplier;
+    private final double jitter;
+    private final Predicate<Object> retryIf;
+
+    private RetryPolicy(int maxAttempts, long initialDelayNanos, long maxDelayNanos, double multiplier,
+                        double jitter, Predicate<Object> retryIf) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayNanos = initialDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.retryIf = retryIf;
+    }
+
+    /**
+     * Delay is doubled after every failed attempt (up to {@code maxDelay}), half of it is randomized.
+     */
+    public static RetryPolicy exponential(int maxAttempts, long initialDelay, long maxDelay, TimeUnit unit) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be positive: " + maxAttempts);
+        }
+
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Delays must satisfy 0 <= initialDelay <= maxDelay");
+        }
+
+        return new RetryPolicy(maxAttempts, unit.toNanos(initialDelay), unit.toNanos(maxDelay), 2.0, 0.5, ANY_REASON);
+    }
+
+    public static RetryPolicy fixed(int maxAttempts, long delay, TimeUnit unit) {
+        return exponential(maxAttempts, delay, delay, unit).withJitter(0);
+    }
+
+    public RetryPolicy withMultiplier(double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Multiplier must be >= 1: " + multiplier);
+        }
+
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, retryIf);
+    }
+
+    /**
+     * @param jitter randomized fraction of delay, 0 (no jitter) .. 1 ("full jitter")
+     */
+    public RetryPolicy withJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be in [0, 1]: " + jitter);
+        }
+
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, retryIf);
+    }
+
+    /**
+     * Only rejects with reason matched by predicate are retried.
+     */
+    public RetryPolicy retryIf(Predicate<Object> predicate) {
+        if (predicate == null) {
+            throw new NullPointerException("Predicate can't be null");
+        }
+
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, predicate);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    boolean shouldRetry(int attempts, Object reason) {
+        return attempts < maxAttempts && retryIf.test(reason);
+    }
+
+    /**
+     * @return delay before next attempt after {@code attempts} failed ones
+     */
+    long delayNanos(int attempts) {
+        final double delay = Math.min(initialDelayNanos * Math.pow(multiplier, attempts - 1), maxDelayNanos);
+
+        return (long) (delay * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.util.callback.Callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Selection engine for {@link AsyncUtils#earlier}, {@link AsyncUtils#firstSuccess},
+ * {@link AsyncUtils#firstN} and {@link AsyncUtils#quorum}.
+ *
+ * Waits for {@code required} successful inputs. In "first completion" mode any failure or
+ * cancellation of input finishes selection too, otherwise failures are ignored until
+ * {@code required} successes become unreachable. Result is decided by one CAS, losers are
+ * taken from pending slots (each input is cancelled at most once, completed ones are skipped).
+ */
+final class Selector {
+    private final Deferred<?> deferred;
+    private final Deferred<? super Promise<?>> single;         // earlier, firstSuccess
+    private final Deferred<? super List<Promise<?>>> multiple;  // firstN, quorum
+    private final Promise<?>[] promises;
+    private final int required;
+    private final boolean firstCompletion;
+
+    private final AtomicReferenceArray<Promise<?>> pending;
+    private final AtomicReferenceArray<Promise<?>> winners;
+    private final AtomicInteger successes = new AtomicInteger(0);
+    private final AtomicInteger written = new AtomicInteger(0);
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private Selector(Deferred<?> deferred, Deferred<? super Promise<?>> single,
+                     Deferred<? super List<Promise<?>>> multiple, Promise<?>[] promises, int required,
+                     boolean firstCompletion) {
+        if (required < 1 || required > Math.max(promises.length, 1)) {
+            throw new IllegalArgumentException("Required count must be in [1, " + promises.length + "]: " + required);
+        }
+
+        this.deferred = deferred;
+        this.single = single;
+        this.multiple = multiple;
+        this.promises = promises;
+        this.required = required;
+        this.firstCompletion = firstCompletion;
+        this.pending = new AtomicReferenceArray<Promise<?>>(promises);
+        this.winners = new AtomicReferenceArray<Promise<?>>(required);
+    }
+
+    /**
+     * Resolves deferred with the first successful input.
+     */
+    static void first(Deferred<? super Promise<?>> deferred, Promise<?>[] promises, boolean firstCompletion) {
+        new Selector(deferred, deferred, null, promises, 1, firstCompletion).start();
+    }
+
+    /**
+     * Resolves deferred with list of first {@code required} successful inputs.
+     */
+    static void firstN(Deferred<? super List<Promise<?>>> deferred, Promise<?>[] promises, int required) {
+        new Selector(deferred, null, deferred, promises, required, false).start();
+    }
+
+    private void start() {
+        final int size = promises.length;
+        if (size == 0) {
+            deferred.reject(new IllegalArgumentException("Nothing to select from"));
+            return;
+        }
+
+        deferred.onCancel(new Callback<CancelEvent>() {
+            @Override
+            public void handle(CancelEvent message) {
+                finished.set(true);
+                cancelLosers("Selection (or one of selected tasks) was cancelled");
+            }
+        });
+
+        for (int i = 0; i < size && !finished.get(); ++i) {
+            AsyncUtils.onTerminal(promises[i], new Member(i));
+        }
+    }
+
+    private void completed(int index, PromiseEvent<?> event) {
+        final Promise<?> promise = pending.getAndSet(index, null);
+        if (promise == null || finished.get()) {
+            return;
+        }
+
+        if (event instanceof SuccessEvent) {
+            final int position = successes.getAndIncrement();
+            if (position >= required) {
+                return;
+            }
+
+            winners.set(position, promise);
+            if (written.incrementAndGet() == required && finish()) {
+                resolve();
+                cancelLosers("Selection was finished");
+            }
+        } else if (firstCompletion || failures.incrementAndGet() > promises.length - required) {
+            if (finish()) {
+                if (event instanceof CancelEvent && firstCompletion) {
+                    deferred.cancel(promise);
+                } else {
+                    deferred.reject(promise);
+                    cancelLosers("Selection was failed");
+                }
+            }
+        }
+    }
+
+    private void resolve() {
+        if (single != null) {
+            single.resolve(winners.get(0));
+            return;
+        }
+
+        final List<Promise<?>> result = new ArrayList<Promise<?>>(required);
+        for (int i = 0; i < required; ++i) {
+            result.add(winners.get(i));
+        }
+
+        multiple.resolve(result);
+    }
+
+    private boolean finish() {
+        return !finished.get() && finished.compareAndSet(false, true);
+    }
+
+    private void cancelLosers(String message) {
+        IllegalStateException reason = null;
+
+        for (int i = 0, size = pending.length(); i < size; ++i) {
+            final Promise<?> promise = pending.getAndSet(i, null);
+
+            if (promise != null) {
+                if (reason == null) {
+                    reason = new IllegalStateException(message);
+                }
+
+                promise.cancel(reason);
+            }
+        }
+    }
+
+    private class Member implements Callback<PromiseEvent<?>> {
+        private final int index;
+
+        Member(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void handle(PromiseEvent<?> event) {
+            completed(index, event);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules delayed one-shot tasks (mostly promise timeouts) for {@link AsyncContext}.
+ */
+public interface TimeoutScheduler {
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit);
+
+    public interface Timeout {
+        /**
+         * @return false if task has already been executed or cancelled
+         */
+        public boolean cancel();
+
+        public boolean isExpired();
+        public boolean isCancelled();
+    }
+}
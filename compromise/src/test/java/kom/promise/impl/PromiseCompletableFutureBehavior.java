@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import kom.promise.Deferred;
+import kom.promise.util.AsyncContext;
+import kom.promise.util.AsyncUtils;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class PromiseCompletableFutureBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test
+    public void futureShouldBeCompletedInline() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        final CompletableFuture<Integer> future = deferred.getPromise().toCompletableFuture();
+
+        deferred.resolve(1);
+
+        assertThat(future.isDone(), is(true));
+        assertThat(future.get(), is(1));
+    }
+
+    @Test
+    public void cancelledFutureShouldCancelPromise() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        final CompletableFuture<Integer> future = deferred.getPromise().toCompletableFuture();
+
+        assertThat(future.cancel(true), is(true));
+
+        assertThat(deferred.getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void cancelledPromiseShouldCancelFuture() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        final CompletableFuture<Integer> future = deferred.getPromise().toCompletableFuture();
+
+        deferred.getPromise().cancel("reason");
+
+        assertThat(future.isCancelled(), is(true));
+        try {
+            future.join();
+            fail("Cancellation should be thrown");
+        } catch (CancellationException e) {
+            assertTrue(e.getMessage().contains("reason"));
+        }
+    }
+
+    @Test
+    public void futureOfCompletedPromiseShouldNotBeCancelled() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        deferred.resolve(1);
+
+        final CompletableFuture<Integer> future = deferred.getPromise().toCompletableFuture();
+
+        assertThat(future.cancel(true), is(false));
+        assertThat(deferred.getPromise().isSuccessed(), is(true));
+    }
+
+    @Test
+    public void failReasonShouldBecomeFutureException() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        final CompletableFuture<Integer> future = deferred.getPromise().toCompletableFuture();
+        final IllegalStateException reason = new IllegalStateException();
+
+        deferred.reject(reason);
+
+        try {
+            future.get();
+            fail("Fail reason should be thrown");
+        } catch (ExecutionException e) {
+            assertSame(reason, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.UpdatePolicy;
+import kom.promise.events.PromiseEvent;
+import kom.promise.events.SuccessEvent;
+import kom.promise.events.UpdateEvent;
+import kom.promise.util.AsyncContext;
+import kom.promise.util.AsyncUtils;
+import kom.util.callback.Callback;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class PromiseImplBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test(timeout = 5000)
+    public void waiterShouldBeWokenWhenListenerExecutorRejects() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        deferred.getPromise().onSuccess(new Callback<SuccessEvent<Integer>>() {
+            @Override
+            public void handle(SuccessEvent<Integer> message) {
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+
+        final Thread resolver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                deferred.resolve(1);
+            }
+        });
+        resolver.start();
+
+        assertThat(deferred.getPromise().get(), is(1));
+        resolver.join();
+    }
+
+    @Test
+    public void nestedCallbacksShouldRunAfterCurrentOne() throws Exception {
+        final List<String> log = new ArrayList<String>();
+        final Deferred<Integer> first = context.deferred();
+        final Deferred<Integer> second = context.deferred();
+
+        second.getPromise().onSuccess(new Callback<SuccessEvent<Integer>>() {
+            @Override
+            public void handle(SuccessEvent<Integer> message) {
+                log.add("second");
+            }
+        });
+        first.getPromise().onSuccess(new Callback<SuccessEvent<Integer>>() {
+            @Override
+            public void handle(SuccessEvent<Integer> message) {
+                second.resolve(2);
+                log.add("first");
+            }
+        });
+
+        first.resolve(1);
+
+        assertThat(log.size(), is(2));
+        assertThat(log.get(0), is("first"));
+        assertThat(log.get(1), is("second"));
+    }
+
+    @Test
+    public void batchedUpdatesShouldKeepNulls() throws Exception {
+        final Deferred<Integer> deferred = context.<Integer>deferred().withUpdatePolicy(UpdatePolicy.batch(2, 1, TimeUnit.SECONDS));
+        final List<Object> updates = new ArrayList<Object>();
+        deferred.getPromise().onUpdate(new Callback<UpdateEvent>() {
+            @Override
+            public void handle(UpdateEvent message) {
+                updates.add(message.getData());
+            }
+        });
+
+        deferred.update(null);
+        deferred.update("x");
+
+        assertThat(updates.size(), is(1));
+        assertEquals(Arrays.asList(null, "x"), updates.get(0));
+    }
+
+    @Test(timeout = 5000)
+    public void delayedUpdatesShouldNotRunOnTimerThread() throws Exception {
+        final Deferred<Integer> deferred = context.<Integer>deferred().withUpdatePolicy(UpdatePolicy.batch(10, 10, TimeUnit.MILLISECONDS));
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final String[] thread = new String[1];
+        deferred.getPromise().onUpdate(new Callback<UpdateEvent>() {
+            @Override
+            public void handle(UpdateEvent message) {
+                thread[0] = Thread.currentThread().getName();
+                delivered.countDown();
+            }
+        });
+
+        deferred.update(1);
+        delivered.await();
+
+        assertFalse(thread[0].equals("compromise-timeout-wheel"));
+    }
+
+    @Test(timeout = 5000)
+    public void executorListenerShouldKeepGateBusyUntilItReturns() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Deferred<Integer> deferred = context.<Integer>deferred().withUpdatePolicy(UpdatePolicy.dropWhileBusy());
+            final List<Object> updates = Collections.synchronizedList(new ArrayList<Object>());
+            final CountDownLatch done = new CountDownLatch(1);
+            deferred.getPromise().onUpdate(new Callback<UpdateEvent<?>>() {
+                @Override
+                public void handle(UpdateEvent<?> message) {
+                    updates.add(message.getData());
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, executor);
+            deferred.getPromise().onAny(new Callback<PromiseEvent<?>>() {
+                @Override
+                public void handle(PromiseEvent<?> message) {
+                    if (!(message instanceof UpdateEvent)) {
+                        done.countDown();
+                    }
+                }
+            }, executor);
+
+            for (int i = 0; i < 100; i++) {
+                deferred.update(i);
+            }
+            deferred.resolve(0);
+            done.await();
+
+            assertTrue(updates.size() < 100);
+            assertThat(updates.get(updates.size() - 1), is((Object) 99));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void updatesShouldNotFollowTerminalEvent() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            final Deferred<Integer> deferred = context.<Integer>deferred().withUpdatePolicy(UpdatePolicy.dropWhileBusy());
+            final List<Object> events = Collections.synchronizedList(new ArrayList<Object>());
+            deferred.getPromise().onAny(new Callback<PromiseEvent>() {
+                @Override
+                public void handle(PromiseEvent message) {
+                    events.add(message instanceof UpdateEvent ? "update" : "done");
+                }
+            });
+
+            final Thread updater = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!deferred.getPromise().isDone()) {
+                        deferred.update(1);
+                    }
+                }
+            });
+            updater.start();
+            deferred.resolve(1);
+            updater.join();
+
+            assertThat(events.get(events.size() - 1), is((Object) "done"));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void timedGetShouldNotCancelPromise() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+
+        try {
+            deferred.getPromise().get(10, TimeUnit.MILLISECONDS);
+            fail("Timeout should be thrown");
+        } catch (TimeoutException ignored) {
+        }
+
+        assertThat(deferred.getPromise().isDone(), is(false));
+
+        deferred.resolve(1);
+        assertThat(deferred.getPromise().get(10, TimeUnit.MILLISECONDS), is(1));
+    }
+
+    @Test(timeout = 5000)
+    public void timedGetShouldBeWokenByCompletion() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        final Thread resolver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                deferred.resolve(1);
+            }
+        });
+        resolver.start();
+
+        final long start = System.nanoTime();
+        assertThat(deferred.getPromise().get(1, TimeUnit.HOURS), is(1));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        resolver.join();
+    }
+
+    @Test(timeout = 5000)
+    public void interruptedTimedGetShouldThrow() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        Thread.currentThread().interrupt();
+
+        try {
+            deferred.getPromise().get(1, TimeUnit.HOURS);
+            fail("Interruption should be thrown");
+        } catch (InterruptedException ignored) {
+        }
+
+        assertThat(deferred.getPromise().isDone(), is(false));
+    }
+
+    @Test(timeout = 5000)
+    public void expiredWaitersShouldBeUnlinked() throws Exception {
+        final PromiseImpl<Integer> promise = new PromiseImpl<Integer>(context);
+        for (int i = 0; i < 200; i++) {
+            promise.await(50, TimeUnit.MICROSECONDS);
+        }
+
+        assertTrue(stackSize(promise) < 10);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void sharedCompletedPromiseShouldRejectTag() throws Exception {
+        context.resolved(null).setTag("x");
+    }
+
+    @Test
+    public void completedPromiseShouldKeepTag() throws Exception {
+        final Promise<String> promise = context.resolved("x");
+        promise.setTag("tag");
+
+        assertThat(promise.getTag(), is((Object) "tag"));
+    }
+
+    @Test
+    public void detachedCallbackShouldNotBeCalled() throws Exception {
+        final PromiseImpl<Integer> promise = new PromiseImpl<Integer>(context);
+        final List<String> log = new ArrayList<String>();
+        final Callback<PromiseEvent> detached = new Callback<PromiseEvent>() {
+            @Override
+            public void handle(PromiseEvent message) {
+                log.add("detached");
+            }
+        };
+
+        promise.onAny(new Callback<PromiseEvent>() {
+            @Override
+            public void handle(PromiseEvent message) {
+                log.add("first");
+            }
+        });
+        promise.onAny(detached);
+        promise.onAny(new Callback<PromiseEvent>() {
+            @Override
+            public void handle(PromiseEvent message) {
+                log.add("last");
+            }
+        });
+
+        assertTrue(promise.detachCallback(detached));
+        assertFalse(promise.detachCallback(detached));
+
+        promise.cancel();
+
+        assertEquals(Arrays.asList("first", "last"), log);
+    }
+
+    private static int stackSize(PromiseImpl<?> promise) throws Exception {
+        final Field state = PromiseImpl.class.getDeclaredField("state");
+        state.setAccessible(true);
+        final Field next = Class.forName(PromiseImpl.class.getName() + "$Completion").getDeclaredField("next");
+        next.setAccessible(true);
+
+        int count = 0;
+        for (Object node = state.get(promise); node != null; node = next.get(node)) {
+            ++count;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.impl;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.util.AsyncContext;
+import kom.promise.util.AsyncUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TrampolineBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test(timeout = 5000)
+    public void blockingGetInsideStageFunctionShouldNotDeadlock() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        final Promise<Integer> promise = deferred.getPromise().map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer x) {
+                try {
+                    return x + context.resolved(1).map(new Function<Integer, Integer>() {
+                        @Override
+                        public Integer apply(Integer y) {
+                            return y + 1;
+                        }
+                    }).get(1, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        deferred.resolve(5);
+
+        assertThat(promise.get(1, TimeUnit.SECONDS), is(7));
+    }
+
+    @Test
+    public void queuedTasksShouldRunWhenTaskThrowsError() throws Exception {
+        final Executor executor = InlineExecutor.getInstance();
+        final List<String> log = new ArrayList<String>();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            throw new AssertionError("boom");
+                        }
+                    });
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            log.add("second");
+                        }
+                    });
+                }
+            });
+            fail("Error should be rethrown");
+        } catch (AssertionError e) {
+            assertThat(e.getMessage(), is("boom"));
+        }
+
+        assertThat(log.size(), is(1));
+
+        // trampoline is released after error
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                log.add("third");
+            }
+        });
+        assertThat(log.size(), is(2));
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.CancelEvent;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class AsyncScopeBehavior {
+    @Test
+    public void finishedChildrenShouldBeUnlinked() throws Exception {
+        final AsyncScope scope = new AsyncScope();
+        final Deferred<Integer> longLived = scope.deferred();
+
+        for (int i = 0; i < 10000; i++) {
+            final Deferred<Integer> child = scope.deferred();
+            scope.deferred().resolve(i);
+            child.resolve(i);
+        }
+
+        assertTrue(linkedChildren(scope) < 200);
+
+        longLived.resolve(0);
+        scope.close();
+
+        assertThat(scope.getPromise().isDone(), is(true));
+    }
+
+    @Test
+    public void cancelShouldReachChildrenJoinedAfterCompaction() throws Exception {
+        final AsyncScope scope = new AsyncScope();
+        final Deferred<Integer> first = scope.deferred();
+
+        for (int i = 0; i < 1000; i++) {
+            scope.deferred().resolve(i);
+        }
+
+        final Deferred<Integer> last = scope.deferred();
+        scope.cancel();
+
+        assertThat(first.getPromise().isCancelled(), is(true));
+        assertThat(last.getPromise().isCancelled(), is(true));
+        assertThat(scope.getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void taskShouldBeCancelledByScopeOnlyWhenConstructed() throws Exception {
+        final AsyncScope scope = new AsyncScope();
+        scope.cancel();
+
+        final AtomicReference<String> seen = new AtomicReference<String>();
+        final AsyncTask<Integer> task = new AsyncTask<Integer>(scope) {
+            private final String name = "task";
+
+            @Override
+            public void handle(CancelEvent message) {
+                seen.set(name);
+            }
+
+            @Override
+            public void run() {
+            }
+        };
+
+        assertThat(task.isDone(), is(false));
+
+        task.start();
+
+        assertThat(task.isCancelled(), is(true));
+        assertThat(seen.get(), is("task"));
+    }
+
+    @Test
+    public void nestedScopeShouldInheritDeadline() throws Exception {
+        final AsyncScope parent = new AsyncScope(null, 1, TimeUnit.HOURS);
+        final AsyncScope looser = new AsyncScope(parent, 2, TimeUnit.HOURS);
+        final AsyncScope tighter = new AsyncScope(parent, 1, TimeUnit.MINUTES);
+        final AsyncScope unbounded = new AsyncScope(parent);
+
+        assertTrue(looser.getRemaining(TimeUnit.MINUTES) <= 60);
+        assertTrue(tighter.getRemaining(TimeUnit.SECONDS) <= 60);
+        assertTrue(unbounded.getRemaining(TimeUnit.MINUTES) <= 60);
+        assertThat(new AsyncScope().getRemaining(TimeUnit.NANOSECONDS), is(Long.MAX_VALUE));
+
+        parent.cancel();
+    }
+
+    @Test(timeout = 5000)
+    public void expiredDeadlineShouldCancelSubtree() throws Exception {
+        final AsyncScope parent = new AsyncScope(null, 20, TimeUnit.MILLISECONDS);
+        final AsyncScope nested = new AsyncScope(parent);
+        final Deferred<Integer> child = nested.deferred();
+
+        parent.getPromise().await();
+
+        assertThat(parent.getPromise().isCancelled(), is(true));
+        assertThat(nested.isCancelled(), is(true));
+        assertThat(child.getPromise().isCancelled(), is(true));
+        assertTrue(parent.getPromise().rawGet() instanceof TimeoutException);
+        assertThat(nested.getRemaining(TimeUnit.NANOSECONDS), is(0L));
+    }
+
+    @Test(timeout = 5000)
+    public void tighterNestedDeadlineShouldNotCancelParent() throws Exception {
+        final AsyncScope parent = new AsyncScope(null, 1, TimeUnit.HOURS);
+        final AsyncScope nested = new AsyncScope(parent, 20, TimeUnit.MILLISECONDS);
+        final Deferred<Integer> child = nested.deferred();
+
+        nested.getPromise().await();
+
+        assertThat(child.getPromise().isCancelled(), is(true));
+        assertThat(parent.isCancelled(), is(false));
+
+        parent.close();
+        assertThat(parent.getPromise().isSuccessed(), is(true));
+    }
+
+    @Test
+    public void retryShouldNotOutliveScopeDeadline() throws Exception {
+        final AsyncScope scope = new AsyncScope(null, 1, TimeUnit.SECONDS);
+        final int[] attempts = new int[1];
+        final Promise<Integer> result = AsyncUtils.retry(scope, new Supplier<Promise<Integer>>() {
+            @Override
+            public Promise<Integer> get() {
+                ++attempts[0];
+                return scope.rejected("failure");
+            }
+        }, RetryPolicy.fixed(3, 1, TimeUnit.MINUTES));
+
+        assertThat(result.isFailed(), is(true));
+        assertThat(result.rawGet(), is((Object) "failure"));
+        assertThat(attempts[0], is(1));
+
+        scope.cancel();
+    }
+
+    @Test
+    public void nestedScopeShouldShareRootConstants() throws Exception {
+        final AsyncContext root = AsyncUtils.defaultContext();
+        final AsyncScope scope = new AsyncScope(new AsyncScope(root));
+
+        assertSame(root.resolved(null), scope.resolved(null));
+        assertSame(root.resolved(Boolean.TRUE), scope.resolved(Boolean.TRUE));
+        assertSame(root.cancelled(), scope.cancelled());
+        assertSame(root.getCallbackExecutor(), scope.getCallbackExecutor());
+
+        scope.close();
+    }
+
+    private static int linkedChildren(AsyncScope scope) throws Exception {
+        final Field head = AsyncScope.class.getDeclaredField("head");
+        head.setAccessible(true);
+        final Field next = Class.forName(AsyncScope.class.getName() + "$Child").getDeclaredField("next");
+        next.setAccessible(true);
+
+        int count = 0;
+        for (Object node = head.get(scope); node != null; node = next.get(node)) {
+            ++count;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Promise;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class AsyncUtilsBehavior {
+    @Test
+    public void chainOfSynchronousTasksShouldNotGrowStack() throws Exception {
+        final AsyncContext context = new AsyncContext(new InlineExecutorService(), null);
+        final List<AsyncTask> tasks = new ArrayList<AsyncTask>();
+        for (int i = 0; i < 50000; i++) {
+            tasks.add(new AsyncTask<Integer>(context) {
+                @Override
+                public void run() {
+                    resolve(1);
+                }
+            });
+        }
+
+        final Promise<List<AsyncTask>> chain = AsyncUtils.chain(context, tasks);
+
+        assertThat(chain.isSuccessed(), is(true));
+        assertThat(chain.get().size(), is(50000));
+    }
+
+    @Test
+    public void promiseFromStageShouldPropagateCancellation() throws Exception {
+        final CompletableFuture<Integer> stage = new CompletableFuture<Integer>();
+        final Promise<Integer> promise = AsyncUtils.fromStage(stage);
+
+        promise.cancel();
+
+        assertThat(stage.isCancelled(), is(true));
+    }
+
+    @Test
+    public void cancelledStageShouldCancelPromise() throws Exception {
+        final CompletableFuture<Integer> stage = new CompletableFuture<Integer>();
+        final Promise<Integer> promise = AsyncUtils.fromStage(stage);
+
+        stage.cancel(false);
+
+        assertThat(promise.isCancelled(), is(true));
+    }
+
+    private static final class InlineExecutorService extends AbstractExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+}
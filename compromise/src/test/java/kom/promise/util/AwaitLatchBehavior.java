@@ -0,0 +1,80 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.impl.PromiseImpl;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class AwaitLatchBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test
+    public void awaitAnyShouldNotLeaveListenersOnPendingPromises() throws Exception {
+        final Deferred<Integer> pending = context.deferred();
+        final List<Promise<Integer>> promises = Arrays.asList(pending.getPromise(), context.resolved(1));
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(AsyncUtils.awaitAny(promises, 1, TimeUnit.SECONDS), is(promises.get(1)));
+        }
+
+        assertNull(stackOf(pending.getPromise()));
+    }
+
+    @Test
+    public void timedOutAwaitAllShouldNotLeaveListeners() throws Exception {
+        final Deferred<Integer> first = context.deferred();
+        final Deferred<Integer> second = context.deferred();
+        final List<Promise<Integer>> promises = Arrays.asList(first.getPromise(), second.getPromise());
+
+        assertThat(AsyncUtils.awaitAll(promises, 10, TimeUnit.MILLISECONDS).size(), is(0));
+
+        assertNull(stackOf(first.getPromise()));
+        assertNull(stackOf(second.getPromise()));
+    }
+
+    @Test(timeout = 5000)
+    public void awaitAllShouldReturnCompletedPromises() throws Exception {
+        final Deferred<Integer> deferred = context.deferred();
+        final List<Promise<Integer>> promises = Arrays.asList(deferred.getPromise(), context.resolved(2));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deferred.resolve(1);
+            }
+        }).start();
+
+        assertThat(AsyncUtils.awaitAll(promises).size(), is(2));
+    }
+
+    private static Object stackOf(Promise<?> promise) throws Exception {
+        final Field state = PromiseImpl.class.getDeclaredField("state");
+        state.setAccessible(true);
+
+        return state.get(promise);
+    }
+}
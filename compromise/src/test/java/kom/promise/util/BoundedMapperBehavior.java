@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class BoundedMapperBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test
+    public void runningPromisesShouldNotExceedLimit() throws Exception {
+        final List<Deferred<Integer>> started = new ArrayList<Deferred<Integer>>();
+        final Promise<List<Integer>> mapped = AsyncUtils.mapConcurrent(context, Arrays.asList(1, 2, 3, 4, 5),
+                new Function<Integer, Promise<Integer>>() {
+                    @Override
+                    public Promise<Integer> apply(Integer value) {
+                        final Deferred<Integer> deferred = context.deferred();
+                        started.add(deferred);
+                        return deferred.getPromise();
+                    }
+                }, 2, true);
+
+        assertThat(started.size(), is(2));
+
+        started.get(1).resolve(20);
+        assertThat(started.size(), is(3));
+
+        started.get(0).resolve(10);
+        started.get(2).resolve(30);
+        assertThat(started.size(), is(5));
+
+        started.get(4).resolve(50);
+        started.get(3).resolve(40);
+
+        assertEquals(Arrays.asList(10, 20, 30, 40, 50), mapped.get());
+    }
+
+    @Test
+    public void unorderedResultsShouldFollowCompletion() throws Exception {
+        final List<Deferred<Integer>> started = new ArrayList<Deferred<Integer>>();
+        final Promise<List<Integer>> mapped = AsyncUtils.mapConcurrent(context, Arrays.asList(1, 2, 3),
+                new Function<Integer, Promise<Integer>>() {
+                    @Override
+                    public Promise<Integer> apply(Integer value) {
+                        final Deferred<Integer> deferred = context.deferred();
+                        started.add(deferred);
+                        return deferred.getPromise();
+                    }
+                }, 3, false);
+
+        started.get(2).resolve(3);
+        started.get(0).resolve(1);
+        started.get(1).resolve(2);
+
+        assertEquals(Arrays.asList(3, 1, 2), mapped.get());
+    }
+
+    @Test
+    public void streamingShouldPullInputLazily() throws Exception {
+        final int[] pulled = new int[1];
+        final Iterable<Integer> input = new Iterable<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    @Override
+                    public boolean hasNext() {
+                        return pulled[0] < 100000;
+                    }
+
+                    @Override
+                    public Integer next() {
+                        return ++pulled[0];
+                    }
+                };
+            }
+        };
+        final List<Deferred<Integer>> started = new ArrayList<Deferred<Integer>>();
+        final long[] sum = new long[1];
+
+        final Promise<Long> streamed = AsyncUtils.mapConcurrent(context, input,
+                new Function<Integer, Promise<Integer>>() {
+                    @Override
+                    public Promise<Integer> apply(Integer value) {
+                        if (value > 2) {
+                            return context.resolved(value);
+                        }
+
+                        final Deferred<Integer> deferred = context.deferred();
+                        started.add(deferred);
+                        return deferred.getPromise();
+                    }
+                }, 2, new Consumer<Integer>() {
+                    @Override
+                    public void accept(Integer value) {
+                        sum[0] += value;
+                    }
+                });
+
+        assertThat(pulled[0], is(2));
+
+        started.get(0).resolve(1);
+        started.get(1).resolve(2);
+
+        assertThat(streamed.get(), is(100000L));
+        assertThat(sum[0], is(100000L * 100001 / 2));
+    }
+
+    @Test
+    public void failureShouldRejectAndCancelRunning() throws Exception {
+        final List<Deferred<Integer>> started = new ArrayList<Deferred<Integer>>();
+        final Promise<List<Integer>> mapped = AsyncUtils.mapConcurrent(context, Arrays.asList(1, 2, 3),
+                new Function<Integer, Promise<Integer>>() {
+                    @Override
+                    public Promise<Integer> apply(Integer value) {
+                        final Deferred<Integer> deferred = context.deferred();
+                        started.add(deferred);
+                        return deferred.getPromise();
+                    }
+                }, 2, true);
+
+        started.get(0).reject("failure");
+
+        assertThat(mapped.isFailed(), is(true));
+        assertThat(started.get(1).getPromise().isCancelled(), is(true));
+        assertThat(started.size(), is(2));
+    }
+
+    @Test
+    public void consumerExceptionShouldRejectStream() throws Exception {
+        final IllegalStateException failure = new IllegalStateException();
+        final Promise<Long> streamed = AsyncUtils.mapConcurrent(context, Arrays.asList(1, 2, 3),
+                new Function<Integer, Promise<Integer>>() {
+                    @Override
+                    public Promise<Integer> apply(Integer value) {
+                        return context.resolved(value);
+                    }
+                }, 2, new Consumer<Integer>() {
+                    @Override
+                    public void accept(Integer value) {
+                        throw failure;
+                    }
+                });
+
+        assertThat(streamed.isFailed(), is(true));
+        assertSame(failure, streamed.rawGet());
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import kom.promise.events.UpdateEvent;
+import kom.util.callback.Callback;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class FanInBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test
+    public void progressShouldBeReportedEveryStep() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(10);
+        final List<Object> updates = new ArrayList<Object>();
+        final Promise<List<Promise<?>>> parallel = AsyncUtils.parallel(context, promises(inputs), 3, 0,
+                TimeUnit.MILLISECONDS);
+        parallel.onUpdate(new Callback<UpdateEvent>() {
+            @Override
+            public void handle(UpdateEvent message) {
+                updates.add(message.getData());
+            }
+        });
+
+        for (Deferred<Integer> input : inputs) {
+            input.resolve(1);
+        }
+
+        assertThat(parallel.isSuccessed(), is(true));
+        assertThat(updates.size(), is(3)); // 3rd, 6th and 9th completion, 10th resolves
+        assertSame(inputs.get(2).getPromise(), updates.get(0));
+        assertSame(inputs.get(8).getPromise(), updates.get(2));
+    }
+
+    @Test
+    public void progressShouldNotBeReportedMoreOftenThanInterval() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(10);
+        final List<Object> updates = new ArrayList<Object>();
+        final Promise<List<Promise<?>>> parallel = AsyncUtils.parallel(context, promises(inputs), 0, 1,
+                TimeUnit.HOURS);
+        parallel.onUpdate(new Callback<UpdateEvent>() {
+            @Override
+            public void handle(UpdateEvent message) {
+                updates.add(message.getData());
+            }
+        });
+
+        for (Deferred<Integer> input : inputs) {
+            input.resolve(1);
+        }
+
+        assertThat(parallel.isSuccessed(), is(true));
+        assertThat(updates.size(), is(0));
+    }
+
+    @Test
+    public void failureShouldCancelOnlyPendingInputs() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(3);
+        final Promise<List<Promise<?>>> parallel = AsyncUtils.parallel(context, promises(inputs), 0, 0,
+                TimeUnit.MILLISECONDS);
+
+        inputs.get(0).resolve(1);
+        inputs.get(1).reject("failure");
+
+        assertThat(parallel.isFailed(), is(true));
+        assertThat(inputs.get(0).getPromise().isSuccessed(), is(true));
+        assertThat(inputs.get(1).getPromise().isFailed(), is(true));
+        assertThat(inputs.get(2).getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void cancelledFanInShouldCancelOnlyPendingInputs() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(3);
+        final Promise<List<Promise<?>>> parallel = AsyncUtils.parallel(context, promises(inputs), 0, 0,
+                TimeUnit.MILLISECONDS);
+
+        inputs.get(0).resolve(1);
+        parallel.cancel();
+
+        assertThat(inputs.get(0).getPromise().isSuccessed(), is(true));
+        assertThat(inputs.get(1).getPromise().isCancelled(), is(true));
+        assertThat(inputs.get(2).getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void resultShouldBeViewOfInputs() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(2);
+        final List<Promise<Integer>> promises = promises(inputs);
+        final Promise<List<Promise<?>>> parallel = AsyncUtils.parallel(context, promises, 0, 0,
+                TimeUnit.MILLISECONDS);
+
+        inputs.get(1).resolve(2);
+        inputs.get(0).resolve(1);
+
+        assertEquals(promises, parallel.get());
+    }
+
+    private List<Deferred<Integer>> deferreds(int count) {
+        final List<Deferred<Integer>> result = new ArrayList<Deferred<Integer>>();
+        for (int i = 0; i < count; i++) {
+            result.add(context.<Integer>deferred());
+        }
+
+        return result;
+    }
+
+    private static List<Promise<Integer>> promises(List<Deferred<Integer>> deferreds) {
+        final List<Promise<Integer>> result = new ArrayList<Promise<Integer>>();
+        for (Deferred<Integer> deferred : deferreds) {
+            result.add(deferred.getPromise());
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.events.CancelEvent;
+import kom.util.callback.Callback;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class HashedWheelSchedulerBehavior {
+    private final HashedWheelScheduler scheduler = new HashedWheelScheduler(5, TimeUnit.MILLISECONDS, 4);
+
+    @After
+    public void after() {
+        scheduler.stop();
+    }
+
+    @Test(timeout = 5000)
+    public void timeoutShouldNotExpireBeforeDelayBetweenTicks() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expired.countDown();
+            }
+        }, 12, TimeUnit.MILLISECONDS);
+
+        expired.await();
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(12));
+    }
+
+    @Test(timeout = 5000)
+    public void timeoutShouldWaitForItsRound() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        final TimeoutScheduler.Timeout timeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expired.countDown();
+            }
+        }, 70, TimeUnit.MILLISECONDS); // wheel turns every 20ms
+
+        expired.await();
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(70));
+        assertThat(timeout.isExpired(), is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void cancelledTimeoutShouldNotRun() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        final TimeoutScheduler.Timeout timeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        assertThat(timeout.cancel(), is(true));
+        assertThat(timeout.cancel(), is(false));
+
+        Thread.sleep(50);
+
+        assertThat(ran.get(), is(false));
+        assertThat(timeout.isCancelled(), is(true));
+        assertThat(timeout.isExpired(), is(false));
+    }
+
+    @Test(timeout = 5000)
+    public void stoppedSchedulerShouldNotRunPendingTimeouts() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        scheduler.stop();
+        Thread.sleep(50);
+
+        assertThat(ran.get(), is(false));
+
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 10, TimeUnit.MILLISECONDS);
+            fail("Stopped scheduler should not accept timeouts");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void promiseTimeoutShouldNotCancelOnTimerThread() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AsyncContext context = new AsyncContext(executor, null, scheduler);
+        final Deferred<Integer> deferred = context.deferred();
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final String[] thread = new String[1];
+        deferred.getPromise().onCancel(new Callback<CancelEvent>() {
+            @Override
+            public void handle(CancelEvent message) {
+                thread[0] = Thread.currentThread().getName();
+                cancelled.countDown();
+            }
+        }).timeout(10);
+
+        try {
+            cancelled.await();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertFalse(thread[0].equals("compromise-timeout-wheel"));
+    }
+}
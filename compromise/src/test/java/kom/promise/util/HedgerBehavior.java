@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class HedgerBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+    private final List<Deferred<Integer>> started = new CopyOnWriteArrayList<Deferred<Integer>>();
+
+    private final Supplier<Promise<Integer>> supplier = new Supplier<Promise<Integer>>() {
+        @Override
+        public Promise<Integer> get() {
+            final Deferred<Integer> deferred = context.deferred();
+            started.add(deferred);
+            return deferred.getPromise();
+        }
+    };
+
+    @Test(timeout = 5000)
+    public void fastPrimaryShouldNotBeHedged() throws Exception {
+        final Promise<Integer> result = AsyncUtils.hedge(context, supplier, 50, TimeUnit.MILLISECONDS);
+
+        started.get(0).resolve(1);
+        Thread.sleep(100);
+
+        assertThat(result.get(), is(1));
+        assertThat(started.size(), is(1));
+    }
+
+    @Test(timeout = 5000)
+    public void hedgeWinnerShouldCancelPrimary() throws Exception {
+        final Promise<Integer> result = AsyncUtils.hedge(context, supplier, 10, TimeUnit.MILLISECONDS);
+
+        while (started.size() < 2) {
+            Thread.sleep(1);
+        }
+        started.get(1).resolve(2);
+
+        assertThat(result.get(), is(2));
+        assertThat(started.get(0).getPromise().isCancelled(), is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void failedPrimaryShouldBeHedgedAtOnce() throws Exception {
+        final Promise<Integer> result = AsyncUtils.hedge(context, supplier, 1, TimeUnit.HOURS);
+
+        started.get(0).reject("failure");
+
+        assertThat(started.size(), is(2));
+        assertThat(result.isDone(), is(false));
+
+        started.get(1).reject("failure");
+
+        assertThat(result.isFailed(), is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void cancelledResultShouldCancelBothAttempts() throws Exception {
+        final Promise<Integer> result = AsyncUtils.hedge(context, supplier, 10, TimeUnit.MILLISECONDS);
+
+        while (started.size() < 2) {
+            Thread.sleep(1);
+        }
+        result.cancel();
+
+        assertThat(started.get(0).getPromise().isCancelled(), is(true));
+        assertThat(started.get(1).getPromise().isCancelled(), is(true));
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class RetrierBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test
+    public void backoffShouldGrowUpToMaxDelay() throws Exception {
+        final RetryPolicy policy = RetryPolicy.exponential(10, 10, 50, TimeUnit.MILLISECONDS).withJitter(0);
+
+        assertThat(policy.delayNanos(1), is(TimeUnit.MILLISECONDS.toNanos(10)));
+        assertThat(policy.delayNanos(2), is(TimeUnit.MILLISECONDS.toNanos(20)));
+        assertThat(policy.delayNanos(3), is(TimeUnit.MILLISECONDS.toNanos(40)));
+        assertThat(policy.delayNanos(4), is(TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    @Test
+    public void jitterShouldOnlyShortenDelay() throws Exception {
+        final RetryPolicy policy = RetryPolicy.fixed(10, 10, TimeUnit.MILLISECONDS).withJitter(0.5);
+
+        for (int i = 0; i < 100; i++) {
+            final long delay = policy.delayNanos(1);
+            assertTrue(delay <= TimeUnit.MILLISECONDS.toNanos(10));
+            assertTrue(delay >= TimeUnit.MILLISECONDS.toNanos(5));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void failedAttemptsShouldBeRetriedAfterBackoff() throws Exception {
+        final int[] attempts = new int[1];
+        final long start = System.nanoTime();
+        final Promise<Integer> result = AsyncUtils.retry(context, new Supplier<Promise<Integer>>() {
+            @Override
+            public Promise<Integer> get() {
+                return ++attempts[0] < 3 ? context.<Integer>rejected("failure") : context.resolved(attempts[0]);
+            }
+        }, RetryPolicy.fixed(5, 20, TimeUnit.MILLISECONDS));
+
+        assertThat(result.get(), is(3));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test(timeout = 5000)
+    public void lastReasonShouldBeKeptWhenAttemptsAreExhausted() throws Exception {
+        final int[] attempts = new int[1];
+        final Promise<Integer> result = AsyncUtils.retry(context, new Supplier<Promise<Integer>>() {
+            @Override
+            public Promise<Integer> get() {
+                return context.rejected("failure " + ++attempts[0]);
+            }
+        }, RetryPolicy.fixed(3, 1, TimeUnit.MILLISECONDS));
+
+        result.await();
+
+        assertThat(result.isFailed(), is(true));
+        assertThat(result.rawGet(), is((Object) "failure 3"));
+    }
+
+    @Test
+    public void unmatchedReasonShouldNotBeRetried() throws Exception {
+        final int[] attempts = new int[1];
+        final Promise<Integer> result = AsyncUtils.retry(context, new Supplier<Promise<Integer>>() {
+            @Override
+            public Promise<Integer> get() {
+                ++attempts[0];
+                return context.rejected("fatal");
+            }
+        }, RetryPolicy.fixed(3, 1, TimeUnit.MILLISECONDS).retryIf(new Predicate<Object>() {
+            @Override
+            public boolean test(Object reason) {
+                return !"fatal".equals(reason);
+            }
+        }));
+
+        assertThat(result.isFailed(), is(true));
+        assertThat(attempts[0], is(1));
+    }
+
+    @Test
+    public void cancelledResultShouldCancelRunningAttempt() throws Exception {
+        final List<Deferred<Integer>> started = new ArrayList<Deferred<Integer>>();
+        final Promise<Integer> result = AsyncUtils.retry(context, new Supplier<Promise<Integer>>() {
+            @Override
+            public Promise<Integer> get() {
+                final Deferred<Integer> deferred = context.deferred();
+                started.add(deferred);
+                return deferred.getPromise();
+            }
+        }, RetryPolicy.fixed(3, 1, TimeUnit.MILLISECONDS));
+
+        result.cancel();
+
+        assertThat(started.get(0).getPromise().isCancelled(), is(true));
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise.util;
+
+import kom.promise.Deferred;
+import kom.promise.Promise;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class SelectorBehavior {
+    private final AsyncContext context = AsyncUtils.defaultContext();
+
+    @Test
+    public void firstSuccessShouldIgnoreFailuresWhileSuccessIsPossible() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(3);
+        final Promise<Promise<?>> first = AsyncUtils.firstSuccess(promises(inputs));
+
+        inputs.get(0).reject("failure");
+        assertThat(first.isDone(), is(false));
+
+        inputs.get(2).resolve(3);
+
+        assertSame(inputs.get(2).getPromise(), first.get());
+        assertThat(inputs.get(1).getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void firstSuccessShouldFailWhenAllInputsFail() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(2);
+        final Promise<Promise<?>> first = AsyncUtils.firstSuccess(promises(inputs));
+
+        inputs.get(0).reject("failure");
+        inputs.get(1).cancel();
+
+        assertThat(first.isFailed(), is(true));
+    }
+
+    @Test
+    public void firstNShouldResolveWithListInCompletionOrder() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(4);
+        final Promise<List<Promise<?>>> firstN = AsyncUtils.firstN(2, promises(inputs));
+
+        inputs.get(3).resolve(4);
+        inputs.get(1).resolve(2);
+
+        assertEquals(Arrays.<Promise<?>>asList(inputs.get(3).getPromise(), inputs.get(1).getPromise()), firstN.get());
+        assertThat(inputs.get(0).getPromise().isCancelled(), is(true));
+        assertThat(inputs.get(2).getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void firstOneShouldResolveWithList() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(2);
+        final Promise<List<Promise<?>>> firstN = AsyncUtils.firstN(1, promises(inputs));
+
+        inputs.get(1).resolve(2);
+
+        assertEquals(Arrays.<Promise<?>>asList(inputs.get(1).getPromise()), firstN.get());
+    }
+
+    @Test
+    public void firstNShouldFailAsSoonAsSuccessesBecomeUnreachable() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(4);
+        final Promise<List<Promise<?>>> firstN = AsyncUtils.firstN(3, promises(inputs));
+
+        inputs.get(0).resolve(1);
+        inputs.get(1).reject("failure");
+        assertThat(firstN.isDone(), is(false));
+
+        inputs.get(2).reject("failure");
+
+        assertThat(firstN.isFailed(), is(true));
+        assertThat(inputs.get(0).getPromise().isSuccessed(), is(true));
+        assertThat(inputs.get(3).getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void quorumShouldNeedMajority() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(5);
+        final Promise<List<Promise<?>>> quorum = AsyncUtils.quorum(promises(inputs));
+
+        inputs.get(0).resolve(1);
+        inputs.get(1).reject("failure");
+        inputs.get(2).resolve(3);
+        assertThat(quorum.isDone(), is(false));
+
+        inputs.get(3).resolve(4);
+
+        assertThat(quorum.get().size(), is(3));
+        assertThat(inputs.get(4).getPromise().isCancelled(), is(true));
+    }
+
+    @Test
+    public void quorumShouldFailWhenMajorityIsUnreachable() throws Exception {
+        final List<Deferred<Integer>> inputs = deferreds(3);
+        final Promise<List<Promise<?>>> quorum = AsyncUtils.quorum(promises(inputs));
+
+        inputs.get(0).reject("failure");
+        inputs.get(1).cancel();
+
+        assertThat(quorum.isFailed(), is(true));
+        assertThat(inputs.get(2).getPromise().isCancelled(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void firstNShouldRejectCountAboveInputs() throws Exception {
+        AsyncUtils.firstN(3, promises(deferreds(2)));
+    }
+
+    private List<Deferred<Integer>> deferreds(int count) {
+        final List<Deferred<Integer>> result = new ArrayList<Deferred<Integer>>();
+        for (int i = 0; i < count; i++) {
+            result.add(context.<Integer>deferred());
+        }
+
+        return result;
+    }
+
+    private static List<Promise<Integer>> promises(List<Deferred<Integer>> deferreds) {
+        final List<Promise<Integer>> result = new ArrayList<Promise<Integer>>();
+        for (Deferred<Integer> deferred : deferreds) {
+            result.add(deferred.getPromise());
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Sergey Yungman (aka komelgman)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kom.promise;
+
+import kom.promise.util.AsyncContext;
+import kom.promise.util.AsyncTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares blocking-style AsyncTask code on platform thread pool and on virtual thread context.
+ * Usage: VirtualContextUsage [tasks count] [platform pool size]
+ */
+public class VirtualContextUsage {
+    private static final int TASK_DELAY = 100;
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final ExecutorService platformExecutor = Executors.newFixedThreadPool(poolSize);
+        benchmark("platform(" + poolSize + ")", new AsyncContext(platformExecutor, null), count);
+        platformExecutor.shutdown();
+
+        try {
+            benchmark("virtual", AsyncContext.virtual(), count);
+        } catch (UnsupportedOperationException e) {
+            System.out.println("virtual: " + e.getMessage());
+        }
+    }
+
+    private static void benchmark(String name, AsyncContext context, int count) {
+        final List<AsyncTask<Integer>> tasks = new ArrayList<AsyncTask<Integer>>(count);
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < count; ++i) {
+            tasks.add(blockingTask(context, i).start());
+        }
+
+        long sum = 0;
+        for (AsyncTask<Integer> task : tasks) {
+            sum += task.tryGet();
+        }
+
+        System.out.println(name + ": " + count + " tasks, checksum " + sum + ", "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private static AsyncTask<Integer> blockingTask(AsyncContext context, final int value) {
+        return new AsyncTask<Integer>(context) {
+            @Override
+            public void run() {
+                try {
+                    // blocking call, e.g. legacy client
+                    Thread.sleep(TASK_DELAY);
+                    resolve(value);
+                } catch (InterruptedException e) {
+                    reject(e);
+                }
+            }
+        };
+    }
+}